@@ -0,0 +1,530 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/*  benchmarks for VPL, Jive, and Corgi
+
+    run everything with        Bench/run
+    or just some of them with  Bench/run vpl.fib jive.translate.100
+
+    options:
+       -list        show the benchmark names
+       -f n         fork n fresh JVMs per benchmark (default 2)
+       -wi n        warmup iterations per fork (default 5)
+       -i n         measured iterations per fork (default 5)
+       -t ms        length of one iteration (default 1000)
+       -csv file    also write the results to file, one line each
+
+    each benchmark runs in its own JVM (started by this one),
+    so JIT decisions made for one don't leak into the next;
+    an iteration calls the benchmark over and over until its
+    time is up, and the score is the mean time per call over all
+    measured iterations of all forks, along with a second rate
+    in the benchmark's own unit (VPL instructions, Jive source
+    words, Corgi nodes evaluated, table lookups)
+
+    Corgi's Lexer and Parser are still being written and don't
+    compile yet, so only Node.evaluate and MemTable are measured
+
+    the same benchmarks run under JMH from the Maven build (see
+    bench/Benchmarks.java), which is the one to trust for small
+    differences, since JMH also guards against the JIT removing
+    or hoisting the work; this runner needs only javac, for a
+    quick look
+*/
+
+public class Bench
+{
+  // one benchmark: setUp runs once per fork, call runs once per
+  // operation and returns the number of units of work it did
+  private static abstract class Benchmark
+  {
+    String name, unit;
+
+    Benchmark( String n, String u )
+    {  name = n;  unit = u;  }
+
+    void setUp() throws Exception
+    {  }
+
+    abstract long call() throws Exception;
+  }
+
+  private static ArrayList<Benchmark> all = new ArrayList<Benchmark>();
+
+  private static int forks = 2, warmups = 5, iterations = 5;
+  private static long iterationMillis = 1000;
+
+  // results are only computed to be stored here, so the JIT can't
+  // throw the work away
+  static volatile double sink;
+
+  // output stream that throws everything away
+  private static final OutputStream nowhere = new OutputStream() {
+    public void write( int b ) {  }
+    public void write( byte[] b, int off, int len ) {  }
+  };
+
+  // scratch folder for generated programs
+  private static File work;
+
+  public static void main(String[] args) throws Exception
+  {
+    addBenchmarks();
+
+    String csv = null, child = null;
+    ArrayList<String> chosen = new ArrayList<String>();
+
+    for( int k=0; k<args.length; ++k )
+    {
+      if( args[k].equals("-list") )
+      {
+        for( Benchmark b : all )
+          System.out.println( b.name );
+        return;
+      }
+      else if( args[k].equals("-f") )  forks = Integer.parseInt( args[++k] );
+      else if( args[k].equals("-wi") )  warmups = Integer.parseInt( args[++k] );
+      else if( args[k].equals("-i") )  iterations = Integer.parseInt( args[++k] );
+      else if( args[k].equals("-t") )  iterationMillis = Long.parseLong( args[++k] );
+      else if( args[k].equals("-csv") )  csv = args[++k];
+      else if( args[k].equals("-child") )  child = args[++k];
+      else if( args[k].startsWith("-") )
+      {
+        System.out.println("Usage: java Bench [-list] [-f n] [-wi n] [-i n] " +
+                           "[-t ms] [-csv file] [benchmark ...]");
+        System.exit(1);
+      }
+      else
+        chosen.add( args[k] );
+    }
+
+    if( child != null )
+      runChild( find( child ) );
+    else
+      runAll( chosen, csv );
+  }
+
+  private static Benchmark find( String name )
+  {
+    for( Benchmark b : all )
+      if( b.name.equals( name ) )
+        return b;
+    System.out.println("no benchmark named [" + name + "], try -list");
+    System.exit(1);
+    return null;
+  }
+
+  // start a JVM for each fork of each chosen benchmark and
+  // collect what they report
+  private static void runAll( ArrayList<String> chosen, String csv )
+                                                        throws Exception
+  {
+    if( chosen.isEmpty() )
+      for( Benchmark b : all )
+        chosen.add( b.name );
+
+    String java = Paths.get( System.getProperty("java.home"), "bin", "java" )
+                       .toString();
+    String classPath = System.getProperty("java.class.path");
+
+    PrintWriter csvOut = null;
+    if( csv != null )
+    {
+      csvOut = new PrintWriter( new FileWriter( csv ) );
+      csvOut.println("benchmark,forks,iterations,ns_per_op,ns_per_op_error," +
+                     "units_per_s,unit");
+    }
+
+    System.out.printf("%-28s %14s %12s %16s%n", "benchmark", "ns/op",
+                      "+-", "units/s");
+
+    for( String name : chosen )
+    {
+      Benchmark b = find( name );
+      ArrayList<double[]> scores = new ArrayList<double[]>();
+
+      for( int f=0; f<forks; ++f )
+      {
+        ProcessBuilder pb = new ProcessBuilder( java, "-cp", classPath,
+             "Bench", "-child", name, "-wi", "" + warmups,
+             "-i", "" + iterations, "-t", "" + iterationMillis );
+        pb.redirectErrorStream( true );
+        Process p = pb.start();
+
+        BufferedReader in = new BufferedReader(
+                     new InputStreamReader( p.getInputStream() ) );
+        String line;
+        while( (line = in.readLine()) != null )
+        {
+          if( line.startsWith("#result,") )
+          {
+            String[] parts = line.split(",");
+            scores.add( new double[]{ Double.parseDouble( parts[1] ),
+                                      Double.parseDouble( parts[2] ) } );
+          }
+          else
+            System.out.println("  " + name + ": " + line );
+        }
+        if( p.waitFor() != 0 )
+          System.out.println("  " + name + ": fork " + f + " failed");
+      }
+
+      if( scores.isEmpty() )
+        continue;
+
+      double mean = 0, rate = 0;
+      for( double[] s : scores )
+      {  mean += s[0];  rate += s[1];  }
+      mean /= scores.size();  rate /= scores.size();
+
+      double var = 0;
+      for( double[] s : scores )
+        var += (s[0]-mean)*(s[0]-mean);
+      double error = scores.size() > 1 ?
+                       Math.sqrt( var / (scores.size()-1) ) : 0;
+
+      System.out.printf("%-28s %14.1f %12.1f %16.0f %s%n", name, mean, error,
+                        rate, b.unit );
+      if( csvOut != null )
+        csvOut.printf("%s,%d,%d,%.1f,%.1f,%.0f,%s%n", name, forks,
+                      scores.size(), mean, error, rate, b.unit );
+    }
+
+    if( csvOut != null )
+      csvOut.close();
+  }
+
+  // run one benchmark in this JVM, reporting each measured
+  // iteration as "#result,ns per op,units per second"
+  private static void runChild( Benchmark b ) throws Exception
+  {
+    PrintStream report = System.out;
+
+    // what the benchmarked programs print is not part of the result
+    System.setOut( new PrintStream( nowhere ) );
+
+    work = Files.createTempDirectory("bench").toFile();
+    b.setUp();
+
+    for( int k=0; k<warmups+iterations; ++k )
+    {
+      long ops = 0, units = 0;
+      long start = System.nanoTime();
+      long stop = start + iterationMillis * 1000000L;
+      long now;
+      do {
+        units += b.call();
+        ops++;
+        now = System.nanoTime();
+      }while( now < stop );
+
+      if( k >= warmups )
+        report.println("#result," + (double)(now-start)/ops + "," +
+                       units * 1e9 / (now-start) );
+    }
+    report.flush();
+    cleanUp();
+  }
+
+  // set up the benchmark named name in this JVM for JMH (see
+  // bench/Benchmarks.java), returning what calls it once and
+  // gives the units of work done
+  public static LongSupplier workload( String name ) throws Exception
+  {
+    addBenchmarks();
+    Benchmark b = find( name );
+
+    // what the benchmarked programs print is not part of the result
+    System.setOut( new PrintStream( nowhere ) );
+    work = Files.createTempDirectory("bench").toFile();
+    b.setUp();
+
+    return () -> {
+      try {
+        return b.call();
+      }
+      catch( Exception e )
+      {
+        throw new RuntimeException( e );
+      }
+    };
+  }
+
+  // remove the scratch folder
+  public static void cleanUp()
+  {
+    for( File f : work.listFiles() )
+      f.delete();
+    work.delete();
+  }
+
+  //======================================================
+  // the benchmarks
+
+  private static void addBenchmarks()
+  {
+    // VPL instruction throughput on programs Jive generates
+
+    String factorial =
+       "Keys -> reps \n" +
+       "0 -> k \n" +
+       "top: \n" +
+       "  Less k reps -> Jmp body: \n" +
+       "  Jmp done: \n" +
+       "body: \n" +
+       "  Fact 12 -> f \n" +
+       "  Add k 1 -> k \n" +
+       "  Jmp top: \n" +
+       "done: \n" +
+       "f -> Prt NL \n" +
+       "Halt \n" +
+       "Def Fact n . \n" +
+       "Less n 2 -> Jmp small: \n" +
+       "  Sub n 1 -> temp \n" +
+       "  Fact temp -> f \n" +
+       "  Mult n f -> Ret \n" +
+       "small: \n" +
+       "  1 -> Ret \n";
+    all.add( new VPLBenchmark( "vpl.factorial", factorial, "1000", false ) );
+
+    String fib =
+       "Keys -> n \n" +
+       "Fib n -> f \n" +
+       "f -> Prt NL \n" +
+       "Halt \n" +
+       "Def Fib n . \n" +
+       "Less n 2 -> Jmp small: \n" +
+       "  Sub n 1 -> a \n" +
+       "  Fib a -> x \n" +
+       "  Sub n 2 -> b \n" +
+       "  Fib b -> y \n" +
+       "  Add x y -> Ret \n" +
+       "small: \n" +
+       "  n -> Ret \n";
+    all.add( new VPLBenchmark( "vpl.fib", fib, "20", false ) );
+
+    all.add( new VPLBenchmark( "vpl.arrayfill",
+       "Keys -> n \n" +
+       "New n -> a \n" +
+       "0 -> k \n" +
+       "fill: \n" +
+       "  Less k n -> Jmp put: \n" +
+       "  Jmp sum: \n" +
+       "put: \n" +
+       "  k -> Put a k \n" +
+       "  Add k 1 -> k \n" +
+       "  Jmp fill: \n" +
+       "sum: \n" +
+       "0 -> k \n" +
+       "0 -> total \n" +
+       "loop: \n" +
+       "  Less k n -> Jmp add: \n" +
+       "  Jmp done: \n" +
+       "add: \n" +
+       "  Get a k -> x \n" +
+       "  Add total x -> total \n" +
+       "  Add k 1 -> k \n" +
+       "  Jmp loop: \n" +
+       "done: \n" +
+       "total -> Prt NL \n" +
+       "Halt \n", "100000", false ) );
+
+    // about the same work done by the bulk ops, a dispatch each
+    all.add( new VPLBenchmark( "vpl.arrayfill.bulk",
+       "Keys -> n \n" +
+       "New n -> a \n" +
+       "7 -> Fill a n \n" +
+       "Sum a n -> total \n" +
+       "total -> Prt NL \n" +
+       "Halt \n", "100000", false ) );
+
+    // the same programs with the compiled tier (compiled once, in
+    // setUp, so this measures only the compiled code)
+
+    all.add( new VPLBenchmark( "vpl.factorial.compiled", factorial, "1000", true ) );
+    all.add( new VPLBenchmark( "vpl.fib.compiled", fib, "20", true ) );
+
+    // Jive translation time as the source gets bigger
+
+    for( int size : new int[]{ 10, 100, 300 } )
+      all.add( new JiveBenchmark( size ) );
+
+    // Corgi
+
+    for( int depth : new int[]{ 8, 14 } )
+      all.add( new EvaluateBenchmark( depth ) );
+
+    for( int count : new int[]{ 10, 100, 1000 } )
+      all.add( new MemTableBenchmark( count ) );
+  }
+
+  // translate a Jive program once, then load and run the VPL code
+  // with the given input on each call
+  private static class VPLBenchmark extends Benchmark
+  {
+    private String source;
+    private byte[] input;
+    private String program;
+    private boolean compiled;
+    private VirtualMachine vm;
+    private VPLCompiler compiler;
+
+    VPLBenchmark( String name, String src, String in, boolean comp )
+    {
+      super( name, "VPL instructions" );
+      source = src;  input = (in + "\n").getBytes();
+      compiled = comp;
+    }
+
+    void setUp() throws Exception
+    {
+      File f = new File( work, name );
+      Files.write( f.toPath(), source.getBytes() );
+      Jive.main( new String[]{ f.getPath() } );
+      program = f.getPath() + ".vplb";
+      VPLLog.level = VPLLog.silent;
+
+      vm = new VirtualMachine( null );
+      if( compiled )
+      {
+        vm.load( program, VirtualMachine.defaultMax );
+        compiler = new VPLCompiler( vm );
+        if( ! compiler.compile() )
+          throw new IllegalStateException( "could not compile " + name );
+      }
+    }
+
+    long call() throws Exception
+    {
+      vm.io = new BatchIO( new ByteArrayInputStream( input ),
+                           nowhere );
+      vm.load( program, VirtualMachine.defaultMax );
+      if( compiled )
+        compiler.run();
+      else
+        vm.run();
+      return vm.step;
+    }
+  }
+
+  // translate a generated Jive program with the given number of
+  // functions, each called once from the "main" part
+  private static class JiveBenchmark extends Benchmark
+  {
+    private int size;
+    private String fileName;
+    private long words;
+
+    JiveBenchmark( int n )
+    {
+      super( "jive.translate." + n, "Jive words" );
+      size = n;
+    }
+
+    void setUp() throws Exception
+    {
+      StringBuilder src = new StringBuilder();
+      src.append("3 -> x \n");
+      for( int k=0; k<size; ++k )
+        src.append("F" + k + " x x -> y \ny -> Prt NL \n");
+      src.append("Halt \n");
+      for( int k=0; k<size; ++k )
+      {
+        src.append("Def F" + k + " a b . \n" +
+                   "Add a b -> c \n" +
+                   "Mult c " + k + " -> d \n" +
+                   "Less d 100 -> Jmp small: \n" +
+                   "d -> Ret \n" +
+                   "small: \n" +
+                   "c -> Ret \n");
+      }
+
+      File f = new File( work, name );
+      Files.write( f.toPath(), src.toString().getBytes() );
+      fileName = f.getPath();
+      words = new StringTokenizer( src.toString() ).countTokens();
+    }
+
+    long call() throws Exception
+    {
+      Jive.main( new String[]{ fileName } );
+      return words;
+    }
+  }
+
+  // evaluate a complete binary tree of arithmetic nodes
+  private static class EvaluateBenchmark extends Benchmark
+  {
+    private int depth;
+    private Node root;
+
+    EvaluateBenchmark( int d )
+    {
+      super( "corgi.evaluate.depth" + d, "nodes" );
+      depth = d;
+    }
+
+    void setUp()
+    {
+      root = build( depth, 0 );
+    }
+
+    private static final String[] ops = { "+", "*", "-", "/" };
+
+    private Node build( int d, int k )
+    {
+      if( d == 0 )
+        return new Node( "num", "" + (1.5 + k%7), null, null, null );
+      else
+        return new Node( ops[ d % ops.length ], build( d-1, 2*k ),
+                         build( d-1, 2*k+1 ), null );
+    }
+
+    long call()
+    {
+      sink = root.evaluate();
+      return (1L << (depth+1)) - 1;
+    }
+  }
+
+  // look up variables in a table holding the given number of them
+  private static class MemTableBenchmark extends Benchmark
+  {
+    private int count;
+    private MemTable table;
+    private String[] names;
+    private int next;
+
+    MemTableBenchmark( int n )
+    {
+      super( "corgi.memtable." + n, "lookups" );
+      count = n;
+    }
+
+    void setUp()
+    {
+      table = new MemTable();
+      names = new String[ count ];
+      for( int k=0; k<count; ++k )
+      {
+        names[k] = "v" + k;
+        table.store( names[k], k );
+      }
+
+      // visit the names in a scrambled but fixed order
+      Collections.shuffle( Arrays.asList( names ), new Random( 17 ) );
+    }
+
+    long call()
+    {
+      sink = table.retrieve( names[ next ] );
+      next++;
+      if( next == count )
+        next = 0;
+      return 1;
+    }
+  }
+
+}// Bench
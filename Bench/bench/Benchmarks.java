@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.*;
+
+/*  the benchmarks of Bench.java under JMH, which takes care of
+    the forks, warmup, and keeping the JIT from throwing the
+    work away (each call's count of units is returned, so JMH
+    consumes it)
+
+       mvn -B package
+       java -jar Bench/target/benchmarks.jar
+       java -jar Bench/target/benchmarks.jar -p name=vpl.fib,vpl.arrayfill
+
+    JMH wants benchmarks in a package, and a package can't name
+    classes in the default package, so the workload is looked
+    up by reflection once per fork, through Bench.workload
+*/
+
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 2 )
+@State( Scope.Benchmark )
+public class Benchmarks
+{
+  @Param({ "vpl.factorial", "vpl.fib", "vpl.arrayfill", "vpl.arrayfill.bulk",
+           "vpl.factorial.compiled", "vpl.fib.compiled",
+           "jive.translate.10", "jive.translate.100", "jive.translate.300",
+           "corgi.evaluate.depth8", "corgi.evaluate.depth14",
+           "corgi.memtable.10", "corgi.memtable.100", "corgi.memtable.1000" })
+  public String name;
+
+  private LongSupplier workload;
+
+  @Setup( Level.Trial )
+  public void setUp() throws Exception
+  {
+    workload = (LongSupplier) Class.forName( "Bench" )
+                 .getMethod( "workload", String.class ).invoke( null, name );
+  }
+
+  @TearDown( Level.Trial )
+  public void tearDown() throws Exception
+  {
+    Class.forName( "Bench" ).getMethod( "cleanUp" ).invoke( null );
+  }
+
+  @Benchmark
+  public long run()
+  {
+    return workload.getAsLong();
+  }
+
+}// Benchmarks
@@ -0,0 +1,440 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*  end-to-end tests of Jive and VPL
+
+    check every test with     Check/run
+    or just some of them with  Check/run factorial pastri
+
+    a test is a Jive program in Jive/Tests (any file without a
+    dot in its name).  It is translated by Jive in a scratch
+    folder, and the VPL code is loaded and run with test.in (if
+    there is such a file) as its input, read before the run and
+    parsed from memory as -batch does.  The test passes if the
+    code and the documented code match the golden files test.vpl
+    and test.doc, and what the program displayed (prompts
+    included, and ending with the error if it stopped with one,
+    as VPL shows it) matches test.out
+
+    that run is the timed one.  Then the program is run once more
+    in each of the other ways VPL can run it, and has to display
+    the same thing each time:
+       console    reading with ConsoleIO, as VPL does without -batch
+       unfused    without superinstructions, as -debug and -coverage do
+       compiled   with the compiled tier, as -compile does
+       offheap    with the heap segment off the Java heap (-offheap)
+
+    if there is a file test.resume holding a number of steps, the
+    program is also run that far, checkpointed, and resumed from
+    the checkpoint with the compiled tier, and what it displayed
+    before and after has to match test.out too
+
+    if there is a file test.mem holding a number of cells, the
+    program runs in a memory that size instead of the default
+
+    options:
+       -threads n   tests run at once (default: one per processor)
+       -repeat n    translate and run each test n times, and report
+                    the fastest of each (default 1)
+       -limit n     instructions a program may execute before it
+                    fails (default 1000000000)
+       -csv file    also write the results to file, one line each
+       -coverage folder
+                    also write test.cov to folder for each test, showing
+                    which lines of the test its input ran (see Coverage)
+       -update      write the golden files instead of comparing
+       -dir folder  where the tests are (Check/run passes Jive/Tests)
+
+    Jive keeps its state in static fields, so only one test is
+    translated at a time, while the runs go on in parallel.  What
+    Jive displays while translating is thrown away, and since Jive
+    exits on errors, a test it can't translate stops the whole
+    check
+*/
+
+public class Check
+{
+  static final long defaultLimit = 1000000000L;
+
+  // one test and, once it has run, how it went
+  private static class Test implements Callable<Test>
+  {
+    final String name;
+    boolean failed;
+    String result = "ok";
+    long translateNanos = Long.MAX_VALUE, runNanos = Long.MAX_VALUE;
+    long instructions;
+
+    Test( String name )
+    {
+      this.name = name;
+    }
+
+    public Test call() throws Exception
+    {
+      try {
+        check( this );
+      }
+      catch( VPLException | IOException e )
+      {
+        fail( e.getMessage() );
+      }
+      return this;
+    }
+
+    void fail( String why )
+    {
+      if( ! failed )
+      {
+        failed = true;
+        result = "FAILED: " + why;
+      }
+    }
+  }
+
+  private static File tests;
+  private static File work;
+  private static int repeat = 1;
+  private static long limit = defaultLimit;
+  private static boolean update;
+  private static File coverage;
+
+  // the other ways each test is run (see the top)
+  private static final String[] modes =
+                         { "console", "unfused", "compiled", "offheap" };
+
+  public static void main( String[] args ) throws Exception
+  {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String dir = "Jive/Tests", csv = null;
+    ArrayList<String> chosen = new ArrayList<String>();
+
+    try {
+      for( int k=0; k<args.length; ++k )
+      {
+        if( args[k].equals("-threads") && k+1 < args.length )
+          threads = Integer.parseInt( args[++k] );
+        else if( args[k].equals("-repeat") && k+1 < args.length )
+          repeat = Integer.parseInt( args[++k] );
+        else if( args[k].equals("-limit") && k+1 < args.length )
+          limit = Long.parseLong( args[++k] );
+        else if( args[k].equals("-csv") && k+1 < args.length )
+          csv = args[++k];
+        else if( args[k].equals("-dir") && k+1 < args.length )
+          dir = args[++k];
+        else if( args[k].equals("-coverage") && k+1 < args.length )
+          coverage = new File( args[++k] );
+        else if( args[k].equals("-update") )
+          update = true;
+        else if( args[k].startsWith("-") )
+          usage();
+        else
+          chosen.add( args[k] );
+      }
+    }
+    catch( NumberFormatException e )
+    {
+      usage();
+    }
+    if( threads < 1 || repeat < 1 || limit < 1 )
+      usage();
+
+    tests = new File( dir );
+    if( chosen.isEmpty() )
+    {
+      String[] names = tests.list();
+      if( names == null )
+      {
+        System.out.println("no tests in [" + dir + "]");
+        System.exit(1);
+      }
+      Arrays.sort( names );
+      for( String name : names )
+        if( name.indexOf('.') < 0 && new File( tests, name ).isFile() )
+          chosen.add( name );
+    }
+
+    ArrayList<Test> all = new ArrayList<Test>();
+    for( String name : chosen )
+      all.add( new Test( name ) );
+
+    // the VPL programs are meant to be seen, not the simulator
+    VPLLog.level = VPLLog.silent;
+    work = Files.createTempDirectory( "check" ).toFile();
+    if( coverage != null )
+      coverage.mkdirs();
+
+    long startTime = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool( threads );
+    List<Future<Test>> results = pool.invokeAll( all );
+    pool.shutdown();
+    long time = System.nanoTime() - startTime;
+
+    PrintWriter csvOut = null;
+    if( csv != null )
+    {
+      csvOut = new PrintWriter( new FileWriter( csv ) );
+      csvOut.println("test,status,translate_ms,run_ms,instructions," +
+                     "instructions_per_s");
+    }
+
+    System.out.printf("%-16s %12s %10s %14s  %s%n", "test", "translate ms",
+                      "run ms", "instructions", "result");
+    int failures = 0;
+    for( int k=0; k<all.size(); ++k )
+    {
+      Test t = all.get(k);
+      try {
+        results.get(k).get();
+      }
+      catch( ExecutionException e )
+      {// not a VPL error, say a Java stack overflow in the verifier
+        t.fail( e.getCause().toString() );
+      }
+      if( t.failed )
+        failures++;
+
+      double translate = t.translateNanos == Long.MAX_VALUE ? 0 :
+                                                t.translateNanos/1e6;
+      double run = t.runNanos == Long.MAX_VALUE ? 0 : t.runNanos/1e6;
+      System.out.printf("%-16s %12.3f %10.3f %14d  %s%n", t.name, translate,
+                        run, t.instructions, t.result );
+      if( csvOut != null )
+        csvOut.printf("%s,%s,%.3f,%.3f,%d,%.0f%n", t.name,
+                      t.failed ? "failed" : update ? "updated" : "ok",
+                      translate, run, t.instructions,
+                      run > 0 ? t.instructions*1000/run : 0 );
+    }
+    if( csvOut != null )
+      csvOut.close();
+
+    System.out.println( all.size() + " tests, " + failures + " failed, in " +
+                        time/1000000 + " ms on " + threads + " threads" );
+    deleteAll( work );
+    System.exit( failures > 0 ? 1 : 0 );
+  }
+
+  // translate and run t, and compare what came out with its golden files
+  private static void check( Test t ) throws Exception
+  {
+    File source = new File( work, t.name );
+    Files.copy( new File( tests, t.name ).toPath(), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING );
+
+    for( int r=0; r<repeat; ++r )
+    {
+      synchronized( Jive.class )
+      {// Jive shows its every step, which only gets in the way here
+        PrintStream console = System.out;
+        System.setOut( new PrintStream( OutputStream.nullOutputStream() ) );
+        try {
+          long start = System.nanoTime();
+          Jive.main( new String[]{ source.getPath() } );
+          t.translateNanos = Math.min( t.translateNanos, System.nanoTime() - start );
+        }
+        finally
+        {
+          System.setOut( console );
+        }
+      }
+    }
+    compare( t, new File( source.getPath() + ".vpl" ), ".vpl" );
+    compare( t, new File( source.getPath() + ".doc" ), ".doc" );
+
+    File in = new File( tests, t.name + ".in" );
+    byte[] input = in.isFile() ? Files.readAllBytes( in.toPath() ) : new byte[0];
+    File mem = new File( tests, t.name + ".mem" );
+    int memory = mem.isFile() ?
+                   Integer.parseInt( new String( Files.readAllBytes( mem.toPath() ) ).trim() ) :
+                   VirtualMachine.defaultMax;
+    byte[] output = null;
+    Coverage covering = null;
+    for( int r=0; r<repeat; ++r )
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      VirtualMachine vm = new VirtualMachine(
+                             new BatchIO( new ByteArrayInputStream( input ), out ) );
+      vm.fusing = coverage == null;
+      vm.load( source.getPath() + ".vpl", memory );
+      if( coverage != null )
+        covering = new Coverage( vm );
+
+      long start = System.nanoTime();
+      boolean halted = false;
+      String error = null;
+      try {
+        halted = vm.run( limit );
+      }
+      catch( VPLException e )
+      {
+        error = e.getMessage();
+      }
+      finally
+      {
+        vm.io.flush();
+        t.instructions = vm.step;
+      }
+      t.runNanos = Math.min( t.runNanos, System.nanoTime() - start );
+      if( error != null )
+        out.write( ( "Fatal error: " + error + "\n" ).getBytes() );
+      else if( ! halted )
+        throw new VPLException( "did not halt after " + limit + " instructions" );
+      output = out.toByteArray();
+    }
+    if( covering != null )
+      covering.report( new File( coverage, t.name + ".cov" ).getPath() );
+
+    File actual = new File( source.getPath() + ".out" );
+    Files.write( actual.toPath(), output );
+    compare( t, actual, ".out" );
+
+    File resume = new File( tests, t.name + ".resume" );
+    if( resume.isFile() && ! update && ! t.failed )
+    {
+      long steps = Long.parseLong(
+                        new String( Files.readAllBytes( resume.toPath() ) ).trim() );
+      Files.write( actual.toPath(), resumed( source, input, memory, steps ) );
+      if( ! Arrays.equals( Files.readAllBytes( actual.toPath() ), output ) )
+        t.fail( "resumed at step " + steps + ", " + t.name + ".out differs" +
+                firstDifference( actual, new File( tests, t.name + ".out" ) ) );
+    }
+
+    for( String mode : modes )
+      if( ! update && ! t.failed )
+      {
+        Files.write( actual.toPath(), runIn( mode, source, input, memory ) );
+        if( ! Arrays.equals( Files.readAllBytes( actual.toPath() ), output ) )
+          t.fail( mode + ", " + t.name + ".out differs" +
+                  firstDifference( actual, new File( tests, t.name + ".out" ) ) );
+      }
+  }
+
+  // what the program in source displays when run in memory cells
+  // the way mode says (see the top)
+  private static byte[] runIn( String mode, File source, byte[] input,
+                               int memory ) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    InputStream in = new ByteArrayInputStream( input );
+    VirtualMachine vm = new VirtualMachine( mode.equals( "console" ) ?
+                             new ConsoleIO( in, out ) : new BatchIO( in, out ) );
+    vm.fusing = ! mode.equals( "unfused" );
+    if( mode.equals( "offheap" ) )
+      vm.offHeap = new OffHeap();
+    vm.load( source.getPath() + ".vpl", memory );
+
+    // (as with -compile, a program that can't be compiled, one
+    // that spawns calls, say, is interpreted)
+    VPLCompiler compiler = null;
+    if( mode.equals( "compiled" ) )
+    {
+      compiler = new VPLCompiler( vm );
+      if( ! compiler.compile() )
+        compiler = null;
+    }
+
+    boolean halted;
+    try {
+      halted = compiler != null ? compiler.run( limit ) : vm.run( limit );
+    }
+    catch( VPLException e )
+    {
+      vm.io.flush();
+      out.write( ( "Fatal error: " + e.getMessage() + "\n" ).getBytes() );
+      return out.toByteArray();
+    }
+    vm.io.flush();
+    if( ! halted )
+      throw new VPLException( mode + " did not halt after " + limit +
+                              " instructions" );
+    return out.toByteArray();
+  }
+
+  // what the program in source displays when run in memory cells
+  // for steps instructions, then checkpointed, and resumed from
+  // the checkpoint with the compiled tier
+  private static byte[] resumed( File source, byte[] input, int memory,
+                                 long steps ) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    VirtualMachine vm = new VirtualMachine(
+                           new BatchIO( new ByteArrayInputStream( input ), out ) );
+    vm.load( source.getPath() + ".vpl", memory );
+    if( vm.run( steps ) )
+      throw new VPLException( "halted before step " + steps );
+
+    String file = source.getPath() + ".ckpt";
+    Checkpoint checkpoint = new Checkpoint( file, Checkpoint.defaultEvery );
+    checkpoint.take( vm );
+    checkpoint.finish();
+
+    vm = new VirtualMachine( new BatchIO( new ByteArrayInputStream( input ), out ) );
+    Checkpoint.resume( vm, file );
+    VPLCompiler compiler = new VPLCompiler( vm );
+    if( ! compiler.compile() )
+      throw new VPLException( "could not compile the resumed program" );
+    try {
+      compiler.run();
+    }
+    catch( VPLException e )
+    {
+      vm.io.flush();
+      out.write( ( "Fatal error: " + e.getMessage() + "\n" ).getBytes() );
+    }
+    vm.io.flush();
+    return out.toByteArray();
+  }
+
+  // compare the file made for t with the golden file ending in
+  // suffix, or make that the golden file if updating
+  private static void compare( Test t, File made, String suffix ) throws IOException
+  {
+    File golden = new File( tests, t.name + suffix );
+    if( update )
+    {
+      Files.copy( made.toPath(), golden.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING );
+      t.result = "updated";
+    }
+    else if( ! golden.isFile() )
+      t.fail( "no " + golden.getName() + ", make it with -update" );
+    else if( ! Arrays.equals( Files.readAllBytes( made.toPath() ),
+                              Files.readAllBytes( golden.toPath() ) ) )
+      t.fail( golden.getName() + " differs" + firstDifference( made, golden ) );
+  }
+
+  // where two text files first differ, for the message
+  private static String firstDifference( File made, File golden ) throws IOException
+  {
+    List<String> a = Files.readAllLines( made.toPath() );
+    List<String> b = Files.readAllLines( golden.toPath() );
+    for( int k=0; k<Math.max( a.size(), b.size() ); ++k )
+    {
+      String x = k < a.size() ? a.get(k) : "<end>";
+      String y = k < b.size() ? b.get(k) : "<end>";
+      if( ! x.equals( y ) )
+        return " at line " + (k+1) + ": [" + x + "] instead of [" + y + "]";
+    }
+    return "";
+  }
+
+  private static void deleteAll( File f )
+  {
+    File[] inside = f.listFiles();
+    if( inside != null )
+      for( File g : inside )
+        deleteAll( g );
+    f.delete();
+  }
+
+  private static void usage()
+  {
+    System.out.println("Usage: java Check [-threads n] [-repeat n] [-limit n] " +
+                       "[-csv file] [-update] [-dir folder] [-coverage folder] " +
+                       "[test ...]");
+    System.exit(1);
+  }
+
+}// Check
@@ -1,11 +1,17 @@
 import java.util.Scanner;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.io.*;
 
 public class Jive {
 
   private static Scanner keys = new Scanner( System.in );
   private static Scanner input;
+
+  // the words of the line of input being scanned, and its number,
+  // so each word is known to come from that line
+  private static Scanner lineWords;
+  private static int line;
   private static PrintWriter output;
   private static PrintWriter output2;
 
@@ -13,17 +19,21 @@ public class Jive {
   // ------------------------------------------------
 
   // holds the vpl code as it is produced
-  private static ArrayList<Integer> vpl = new ArrayList<Integer>();
+  private static ArrayList<Integer> vpl;
+
+  // line of the Jive source each cell of vpl was made for
+  // (shown in the doc file, so VPL can report coverage by line)
+  private static ArrayList<Integer> lineOf;
 
   // holds the name and starting index of all functions
-  private static ArrayList<StringIntPair> funcStart = new ArrayList<StringIntPair>();
+  private static ArrayList<StringIntPair> funcStart;
 
   // string at given index is name of function called at hole -index
-  private static ArrayList<String> callHoles = new ArrayList<String>();
+  private static ArrayList<String> callHoles;
 
   // stores for entire program the start label assigned to each
   // given function name
-  private static ArrayList<StringIntPair> callInfo = new ArrayList<StringIntPair>();
+  private static ArrayList<StringIntPair> callInfo;
 
 
   // little info for actual globals in VPL:
@@ -36,16 +46,16 @@ public class Jive {
   // --------------------------------------------------
 
   // holds the local variables and literals temporarily for each function
-  private static ArrayList<String> locsList = new ArrayList<String>();
+  private static ArrayList<String> locsList;
 
   // once have a locsList for a function, store it in allLocs for output2
-  private static ArrayList<String> allLocs = new ArrayList<String>();
+  private static ArrayList<String> allLocs;
 
   // holds the locations of the holes and the corresponding labels in current function
-  private static ArrayList<StringIntPair> labelHoles = new ArrayList<StringIntPair>();
+  private static ArrayList<StringIntPair> labelHoles;
 
   // holds the label and corresponding index for all labels in current function
-  private static ArrayList<StringIntPair> labelInfo = new ArrayList<StringIntPair>();
+  private static ArrayList<StringIntPair> labelInfo;
 
 
 
@@ -57,7 +67,11 @@ public class Jive {
 
      String fileName = args[0];
 
+     reset();
+
      input = new Scanner( new File( fileName ) );
+     lineWords = new Scanner( "" );
+     line = 0;
      output = new PrintWriter( new File( fileName + ".vpl" ) );
      output2 = new PrintWriter( new File( fileName + ".doc" ) );
 
@@ -86,15 +100,20 @@ public class Jive {
         int scratch = 0;
 
      String rememberWord = "huh?";  // used a little to pass word to next state
+     boolean spawning = false;  // whether state 14 is doing a Spawn
 
      callHoles.add("---");  // waste spot 0 so call holes -1, -2, -3, ..
                             // match nicely to positions in list
 
      int state = 1;
 
-     while ( input.hasNext() ) {
+     while ( hasNextWord() ) {
 
-        String word = input.next();
+        String word = lineWords.next();
+
+        // (code for "main" made before the loop waits for a word
+        // that isn't in a comment)
+        boolean inComment = state == 2 || ( state == 1 && word.equals("/*") );
 
         System.out.println("--------------------->>>" + 
             "\nIn state    " + state + "    processing  [" + word + "]" ); 
@@ -141,6 +160,7 @@ public class Jive {
               if ( vpl.size() == 2 ) {// have only put in the command 1 for "main"
                                       // so still at start
                  vpl.add( 0, 32 );
+                 lineOf.add( 0, line );
 
                  globsList = new ArrayList<String>();
 
@@ -162,6 +182,15 @@ public class Jive {
               if ( word.equals("Get") ) {
                  op = 24;
               }
+              else if ( word.equals("Sum") ) {// these take an array and a count
+                 op = 43;
+              }
+              else if ( word.equals("Min") ) {
+                 op = 44;
+              }
+              else if ( word.equals("Max") ) {
+                 op = 45;
+              }
               else {
                  op = findBIF2(word) + 9;
               }
@@ -178,6 +207,8 @@ public class Jive {
                  vpl.add( 21 );
               else if ( word.equals( "New" ) )
                  vpl.add( 31 );
+              else if ( word.equals( "Join" ) )
+                 vpl.add( 37 );
               else 
                  error("[" + word + "] is not a valid one argument built-in function");
  
@@ -186,6 +217,12 @@ public class Jive {
               state = 11;
            }
 
+           else if ( word.equals("Compare") ) {// the built-in function with 3 args
+              vpl.add( 42 );
+              vpl.add( scratch );
+              state = 20;
+           }
+
            else if ( word.equals("Keys") ) {// is built-in function with 0 args
               vpl.add( 27 );
               state = 13;
@@ -195,6 +232,16 @@ public class Jive {
               state = 16;
            }
 
+           else if ( word.equals("Spawn") ) {// and Spawn, which is followed by a user-def
+              state = 18;
+           }
+
+           else if ( word.equals("Cas") || word.equals("FetchAdd") ) {// and these,
+                                                  // which start with a global
+              rememberWord = word;
+              state = 19;
+           }
+
            else if ( isFuncName( word ) ) {
               rememberWord = word;
               state = 14;
@@ -260,6 +307,7 @@ public class Jive {
            if ( word.equals( "." ) ) {
               // done creating list of globals, generate VPL code for command 32 
               vpl.add( 1, globsList.size() );
+              lineOf.add( 1, line );
 
               // adjust start index of "main" to be 2 farther
               funcStart.get( 0 ).x += 2;
@@ -354,6 +402,18 @@ public class Jive {
               vpl.add( processVar( word, locsList ) );
               // state loops to 14
            }
+           else if ( word.equals("->") && spawning ) {
+              // done with spawn, send out the vpl code, with the
+              // handle going in the scratch cell
+
+              vpl.add( 36 );
+              vpl.add( - nextCallHole() );  // leave a hole
+              callHoles.add( rememberWord );
+              vpl.add( scratch );
+
+              spawning = false;
+              state = 100;
+           }
            else if ( word.equals("->") ) {
               // done with function call, send out the vpl code
 
@@ -405,6 +465,48 @@ public class Jive {
  
         }
 
+        else if ( state == 18 ) {
+           if ( isFuncName( word ) ) {
+              // from here on just like a call
+              rememberWord = word;
+              spawning = true;
+              state = 14;
+           }
+           else {
+              error("[" + word + "] is not a valid function name for Spawn");
+           }
+        }
+
+        else if ( state == 19 ) {
+           if ( isParam( word ) ) {
+              // Cas g e n  is  38 scratch g e n,  FetchAdd g d  is  39 scratch g d
+              if ( rememberWord.equals("Cas") ) {
+                 vpl.add( 38 );
+                 state = 8;
+              }
+              else {
+                 vpl.add( 39 );
+                 state = 11;
+              }
+              vpl.add( scratch );
+              vpl.add( processVar( word, globsList ) );
+           }
+           else {
+              error("[" + word + "] is not a valid global for " + rememberWord );
+           }
+        }
+
+        else if ( state == 20 ) {
+           if ( isVar( word ) ) {
+              // Compare a b n  is  42 scratch a b n, the rest like a 2 arg one
+              vpl.add( processVar( word, locsList ) );
+              state = 8;
+           }
+           else {
+              error( "[" + word + "] is not a valid variable or literal");
+           }
+        }
+
         // end of part 1 states
 
         // begin part 2 states
@@ -448,7 +550,11 @@ public class Jive {
               state = 101;
            }
  
-           else if ( word.equals("Put") ) {
+           else if ( word.equals("Put") || word.equals("Fill") ||
+                     word.equals("Copy") ) {
+              // x -> Fill a n  fills the n cells from a with x,
+              // n -> Copy a b  copies n cells from b to a
+              rememberWord = word;
               state = 102;
            }
 
@@ -476,19 +582,24 @@ public class Jive {
            }
         }
 
-        else if ( state == 102 ) {// processing first <var> for Put
+        else if ( state == 102 ) {// processing first <var> for Put, Fill, Copy
            if ( isVar( word ) ) {// have valid first argument
-              vpl.add( 25 );
+              if ( rememberWord.equals("Put") )
+                 vpl.add( 25 );
+              else if ( rememberWord.equals("Fill") )
+                 vpl.add( 40 );
+              else
+                 vpl.add( 41 );
               vpl.add( processVar( word, locsList ) );
 
               state = 103;
            }
            else {
-              error("[" + word + "] is not a valid first argument for Put");
+              error("[" + word + "] is not a valid first argument for " + rememberWord);
            }
         }
   
-        else if ( state == 103 ) {// processing second <var> for Put
+        else if ( state == 103 ) {// processing second <var> for Put, Fill, Copy
            if ( isVar( word ) ) {// have valid second argument
               vpl.add( processVar( word, locsList ) );
 
@@ -497,7 +608,7 @@ public class Jive {
               state = 1;
            }
            else {
-              error("[" + word + "] is not a valid first argument for Put");
+              error("[" + word + "] is not a valid second argument for " + rememberWord);
            }
         }
   
@@ -515,6 +626,10 @@ public class Jive {
            }
         }
 
+        if ( ! inComment ) {
+           noteLines();
+        }
+
      }// loop to scan all words in Jive source file
 
      // finish off last function definition
@@ -547,7 +662,7 @@ public class Jive {
         System.out.println("at ip: " + ip + ", sending op: " + op + " to vpl file");
 
         if ( op==26 || op==29 ) {// operations with 0 arguments
-           output2.printf("[%5d]    ", ip );
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
            out( op + "\n" ); ip++;
         }
         else if ( op==4 ) {
@@ -555,11 +670,11 @@ System.out.println("function number is " + funcNumber);
            output2.println("\n------------ " + funcStart.get(funcNumber).s + " -------------");
            output2.print( allLocs.get( funcNumber ) );   funcNumber++;
            output2.println();
-           output2.printf("[%5d]    ", ip );
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
            out( op + " " );  ip++;
            out( vpl.get(ip) + "\n" );  ip++;
         }
-        else if ( op== 2 ) {
+        else if ( op==2 || op==36 ) {
            // before send to files, replace call hole with actual label
            String fName = callHoles.get( - vpl.get( ip+1 ) );
            // now search callInfo for the label
@@ -572,32 +687,49 @@ System.out.println("function number is " + funcNumber);
            if ( label == -1 ) 
               error("Could not find function [" + fName + "] in callInfo");
 
-           output2.printf("[%5d]    ", ip );
+           vpl.set( ip+1, label );  // resolved, for the binary file
+
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
            out( op + " " );  ip++;
-           out( label + "\n" );  ip++;
+           if ( op == 2 ) {
+              out( label + "\n" );  ip++;
+           }
+           else {// spawn has the cell for the handle after the label
+              out( label + " " );  ip++;
+              out( vpl.get(ip) + "\n" );  ip++;
+           }
         }
         else if ( op==1 || op==3 || op==5 || op==6 || op==7 ||
                   op==27 || op==28 || op==30 || op==32 ) {// ops with 1 arg
-           output2.printf("[%5d]    ", ip );
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
            out( op + " " );  ip++;
            out( vpl.get(ip) + "\n" );  ip++;
         }
         else if ( op==8 || op==20 || op==21 || op==22 || op==23 || 
-                  op==31 || op==33 || op==34 ) {// ops with 2 args
-           output2.printf("[%5d]    ", ip );
+                  op==31 || op==33 || op==34 || op==37 ) {// ops with 2 args
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
            out( op + " " );  ip++;
            out( vpl.get(ip) + " " );  ip++;
            out( vpl.get(ip) + "\n" );  ip++;
         }
-        else if ( (9<=op && op<=19) || op==24 || op==25 ) {
-           output2.printf("[%5d]    ", ip );
+        else if ( (9<=op && op<=19) || op==24 || op==25 || op==39 ||
+                  op==40 || op==41 || (43<=op && op<=45) ) {
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
            out( op + " " );  ip++;
            out( vpl.get(ip) + " " );  ip++;
            out( vpl.get(ip) + " " );  ip++;
            out( vpl.get(ip) + "\n" );  ip++;
         }
+        else if ( op==38 || op==42 ) {// ops with 4 args
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
+           out( op + " " );  ip++;
+           out( vpl.get(ip) + " " );  ip++;
+           out( vpl.get(ip) + " " );  ip++;
+           out( vpl.get(ip) + " " );  ip++;
+           out( vpl.get(ip) + "\n" );  ip++;
+        }
         else {
-           output2.printf("[%5d]    ", ip );
+           output2.printf("[%5d] line %-4d  ", ip, lineOf.get(ip) );
            System.out.println( op + " is invalid op code, stop translation");
            ip = vpl.size()+1;  // just to stop it
            //error("[" + op + "] is an invalid operation code");
@@ -609,8 +741,112 @@ System.out.println("function number is " + funcNumber);
      output2.close();
      input.close();
 
+     writeBinary( fileName + ".vplb" );
+
    }// main
 
+   // start all the "global" and "local" info over, so
+   // main can translate more than one file in a run
+   private static void reset() {
+      vpl = new ArrayList<Integer>();
+      lineOf = new ArrayList<Integer>();
+      funcStart = new ArrayList<StringIntPair>();
+      callHoles = new ArrayList<String>();
+      callInfo = new ArrayList<StringIntPair>();
+      globsList = null;
+
+      locsList = new ArrayList<String>();
+      allLocs = new ArrayList<String>();
+      labelHoles = new ArrayList<StringIntPair>();
+      labelInfo = new ArrayList<StringIntPair>();
+
+      functionNumber = 0;
+      currentLabel = 0;
+      currentCallHole = 0;
+   }
+
+   // write the vpl code in the binary form that VPL loads by
+   // mapping the file straight into memory (layout is described
+   // in VPLBinary.java in the VPL folder):
+   //   magic, version, number of labels, number of code cells,
+   //   the (label, index) pairs, then the code cells,
+   // with the label commands dropped and the label after each
+   // 2, 7, 8, and 36 already replaced by the index of the label
+   private static void writeBinary( String binName ) throws IOException {
+
+      ArrayList<Integer> code = new ArrayList<Integer>();
+      ArrayList<Integer> labels = new ArrayList<Integer>();
+      HashMap<Integer,Integer> labelIndex = new HashMap<Integer,Integer>();
+      ArrayList<Integer> holes = new ArrayList<Integer>();
+
+      int ip = 0;
+      while ( ip < vpl.size() ) {
+         int op = vpl.get( ip );
+         int n = numCells( op );
+
+         if ( n < 0 ) {// same as the text output, stop at a bad op code
+            ip = vpl.size();
+         }
+         else if ( op == 1 ) {
+            labels.add( vpl.get(ip+1) );
+            labelIndex.put( vpl.get(ip+1), code.size() );
+            ip += n;
+         }
+         else {
+            if ( op == 2 || op == 7 || op == 8 || op == 36 ) {
+               holes.add( code.size()+1 );
+            }
+            for (int k=0; k<n; k++) {
+               code.add( vpl.get(ip) ); ip++;
+            }
+         }
+      }
+
+      for (int k=0; k<holes.size(); k++) {
+         int hole = holes.get(k);
+         Integer index = labelIndex.get( code.get(hole) );
+         if ( index == null )
+            error("couldn't find label [" + code.get(hole) + "] for binary file");
+         code.set( hole, index );
+      }
+
+      DataOutputStream bin = new DataOutputStream(
+             new BufferedOutputStream( new FileOutputStream( binName ) ) );
+      bin.writeInt( 0x56504C42 );  // "VPLB"
+      bin.writeInt( 1 );
+      bin.writeInt( labels.size() );
+      bin.writeInt( code.size() );
+      for (int k=0; k<labels.size(); k++) {
+         bin.writeInt( labels.get(k) );
+         bin.writeInt( labelIndex.get( labels.get(k) ) );
+      }
+      for (int k=0; k<code.size(); k++) {
+         bin.writeInt( code.get(k) );
+      }
+      bin.close();
+
+   }// writeBinary
+
+   // return number of cells used by an op and its arguments,
+   // or -1 if op is not a valid op code
+   private static int numCells( int op ) {
+      if ( op==26 || op==29 )
+         return 1;
+      else if ( op==1 || op==2 || op==3 || op==4 || op==5 || op==6 || op==7 ||
+                op==27 || op==28 || op==30 || op==32 )
+         return 2;
+      else if ( op==8 || op==20 || op==21 || op==22 || op==23 || 
+                op==31 || op==33 || op==34 || op==36 || op==37 )
+         return 3;
+      else if ( (9<=op && op<=19) || op==24 || op==25 || op==39 ||
+                op==40 || op==41 || (43<=op && op<=45) )
+         return 4;
+      else if ( op==38 || op==42 )
+         return 5;
+      else
+         return -1;
+   }
+
    // return whether w starts with lowercase,
    // followed by 0 or more letters or digits
    private static boolean isParam( String w ) {
@@ -686,9 +922,9 @@ System.out.println("function number is " + funcNumber);
    private static String[] bifs2 = { "Add", "Sub", "Mult", "Quot", "Rem", 
                                      "Eq", "NotEq", "Less", "LessEq", 
                                      "And", "Or",
-                                     "Get" };
+                                     "Get", "Sum", "Min", "Max" };
 
-   private static String[] bifs1 = { "Not", "Opp", "New" };
+   private static String[] bifs1 = { "Not", "Opp", "New", "Join" };
 
    private static int findBIF2( String word ) {
       int loc = -1;
@@ -775,6 +1011,23 @@ System.out.println("function number is " + funcNumber);
       return -1;
    }
 
+   // return whether there is another word in the input, moving
+   // on to the next line that has one if need be
+   private static boolean hasNextWord() {
+      while ( ! lineWords.hasNext() && input.hasNextLine() ) {
+         lineWords = new Scanner( input.nextLine() );
+         line++;
+      }
+      return lineWords.hasNext();
+   }
+
+   // the code made since the last call comes from the current line
+   private static void noteLines() {
+      while ( lineOf.size() < vpl.size() ) {
+         lineOf.add( line );
+      }
+   }
+
    private static void out( String s ) {
        output.print( s );
        output2.print( s );
@@ -799,6 +1052,8 @@ System.out.println("function number is " + funcNumber);
    
 System.out.println("Start finishFunctionDef:");
 
+       noteLines();
+
 System.out.println("    vpl at start: " );
 showVPL();
 
@@ -840,6 +1095,12 @@ showTables();
             vpl.add( start, 4 );
             vpl.add( start+1, locsList.size()-numParams );
 
+            // this code, and the code for the literals, comes from
+            // the line where the function starts
+            int defLine = lineOf.get( start-1 );
+            lineOf.add( start, defLine );
+            lineOf.add( start+1, defLine );
+
        // insert the command 22's for each literal in locsList
             int count = 2;  // have to count the two cells used by command 4
             int index = start + 2;
@@ -849,6 +1110,9 @@ showTables();
                   vpl.add( index, 22 ); index++;
                   vpl.add( index, k ); index++;
                   vpl.add( index, Integer.parseInt( locsList.get(k) ) ); index++;
+                  for (int j=0; j<3; j++) {
+                     lineOf.add( index-3, defLine );
+                  }
     
                   count += 3;  // inserting 3 additional values for each int literal
                }
@@ -918,9 +1182,9 @@ System.out.println("filling label hole [" + pair.s + "," + pair.x + "] with " +
    // label generating scheme:
    
    // functions are numbered while being scanned
-   private static int functionNumber = 0;
+   private static int functionNumber;
    private static int spread = 1000;
-   private static int currentLabel = 0;
+   private static int currentLabel;
 
    // generate next label, incrementing by 1
    // if not starting a function, otherwise
@@ -938,7 +1202,7 @@ System.out.println("filling label hole [" + pair.s + "," + pair.x + "] with " +
    }
 
    // call hole stuff:
-   private static int currentCallHole = 0;
+   private static int currentCallHole;
    private static int nextCallHole() {
       currentCallHole++;
       return currentCallHole;
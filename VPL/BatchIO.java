@@ -0,0 +1,193 @@
+import java.io.*;
+
+/*  console for batch jobs: integers are read straight
+    from a large byte buffer and written to another one,
+    with no Scanner, no Strings, and no flushing until
+    the buffer fills or the program halts
+
+    the "? " prompt is still written for each input, so
+    the output is exactly what ConsoleIO would produce
+*/
+
+public class BatchIO implements VPLIO
+{
+  private static final int bufSize = 1 << 16;
+
+  private InputStream in;
+  private byte[] inBuf = new byte[ bufSize ];
+  private int inPos, inLen;
+  private long inputs;
+
+  private OutputStream out;
+  private byte[] outBuf = new byte[ bufSize ];
+  private int outLen;
+  private long outputs;
+
+  public BatchIO( InputStream in, OutputStream out )
+  {
+    this.in = in;  this.out = out;
+  }
+
+  // return next byte of input, or -1 at end of input
+  private int nextByte()
+  {
+    if( inPos == inLen )
+    {
+      try {
+        inLen = in.read( inBuf, 0, bufSize );
+      }
+      catch( IOException e )
+      {
+        throw new VPLException("could not read input: " + e.getMessage() );
+      }
+      inPos = 0;
+      if( inLen <= 0 )
+      {
+        inLen = 0;
+        return -1;
+      }
+    }
+    return inBuf[ inPos++ ] & 0xFF;
+  }
+
+  public int readInt()
+  {
+    put( '?' );  put( ' ' );
+    return nextInt();
+  }
+
+  public boolean inputReady()
+  {  return true;  }
+
+  public long inputsRead()
+  {  return inputs;  }
+
+  public void skipInputs( long count )
+  {
+    for( long k=0; k<count; ++k )
+      nextInt();
+  }
+
+  // the first bytes of the integer being read, to say what
+  // was there if it isn't one
+  private final byte[] token = new byte[ 32 ];
+  private int tokenLen;
+  private boolean tokenCut;
+
+  // read an integer the way ConsoleIO's Scanner does: an optional
+  // sign and digits, which must fit in an int and be followed by
+  // whitespace or the end of input
+  private int nextInt()
+  {
+    int c = nextByte();
+    while( isSpace( c ) )
+      c = nextByte();
+
+    if( c < 0 )
+      throw new VPLException("ran out of input");
+
+    tokenLen = 0;  tokenCut = false;
+    boolean negative = c == '-';
+    if( negative || c == '+' )
+      c = keep( c );
+
+    // accumulate as a negative number so Integer.MIN_VALUE fits,
+    // in a long, so going past the most an int can hold shows
+    // (once past it, it stops changing)
+    long most = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+    long value = 0;
+    int digits = 0;
+    while( '0' <= c && c <= '9' )
+    {
+      if( value >= most )
+        value = 10*value - (c - '0');
+      digits++;
+      c = keep( c );
+    }
+
+    if( digits == 0 || value < most || c >= 0 && ! isSpace( c ) )
+      throw notInteger( c );
+
+    inputs++;
+    return (int) ( negative ? value : -value );
+  }
+
+  private static boolean isSpace( int c )
+  {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  // note c as part of the token and return the byte after it
+  private int keep( int c )
+  {
+    if( tokenLen < token.length )
+      token[ tokenLen++ ] = (byte) c;
+    else
+      tokenCut = true;
+    return nextByte();
+  }
+
+  // the error for a token that isn't an integer, c being the byte
+  // after the part of it read so far
+  private VPLException notInteger( int c )
+  {
+    while( c >= 0 && ! isSpace( c ) )
+      c = keep( c );
+    return new VPLException("input [" + new String( token, 0, tokenLen ) +
+                            ( tokenCut ? "..." : "" ) + "] is not an integer");
+  }
+
+  public void writeInt( int value )
+  {
+    outputs++;
+    if( outLen + 11 > bufSize )
+      flush();
+
+    if( value < 0 )
+      outBuf[ outLen++ ] = '-';
+    else
+      value = -value;  // work with negatives so Integer.MIN_VALUE fits
+
+    int start = outLen;
+    do {
+      outBuf[ outLen++ ] = (byte) ('0' - value % 10);
+      value /= 10;
+    }while( value != 0 );
+
+    // digits came out backwards
+    for( int i=start, j=outLen-1; i<j; ++i, --j )
+    {
+      byte t = outBuf[i];  outBuf[i] = outBuf[j];  outBuf[j] = t;
+    }
+  }
+
+  public void newline()
+  {  outputs++;  put( '\n' );  }
+
+  public void symbol( int c )
+  {  outputs++;  put( c );  }
+
+  public long outputsWritten()
+  {  return outputs;  }
+
+  private void put( int c )
+  {
+    if( outLen == bufSize )
+      flush();
+    outBuf[ outLen++ ] = (byte) c;
+  }
+
+  public void flush()
+  {
+    try {
+      out.write( outBuf, 0, outLen );
+      out.flush();
+    }
+    catch( IOException e )
+    {
+      // nowhere left to report it
+    }
+    outLen = 0;
+  }
+
+}// BatchIO
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/*  checkpoints (-checkpoint file): while a program runs, the
+    whole state of its machine is saved to file every so many
+    instructions (-every n), and right after each debug op, so
+    that after a crash
+
+       java VPL -resume file
+
+    goes on from the last checkpoint
+
+    the file holds, as big-endian ints and longs,
+       magic, version, step, number of integers read from the input,
+       max, ip, bp, sp, rv, hp, gp, numPassed
+       the name of the program file
+       the live cells below the heap (code, globals, stack, and
+       any cells being passed), and the cells from hp to max
+
+    taking a checkpoint stops the program only to copy the live
+    cells; the copy is written through a memory-mapped channel
+    by a background thread while the program goes on, to
+    file.tmp, which is then renamed to file, so a crash while
+    writing leaves the previous checkpoint in place
+
+    once a program spawns calls (see Workers) no more checkpoints
+    are taken, since only the machine of main would be saved
+
+    on resume the program is loaded and verified again, and must
+    be the same code.  Input is read again from the start,
+    skipping the integers the program already read, and any
+    output after the checkpoint is produced again.
+*/
+
+public class Checkpoint
+{
+  private static final int magic = 0x56504c43;  // "VPLC"
+  private static final int version = 1;
+
+  // ints mapped at a time, so a big memory doesn't need one huge mapping
+  private static final int chunk = 1 << 24;
+
+  // instructions between checkpoints when -every isn't given
+  static final long defaultEvery = 100000000L;
+
+  private final String fileName;
+  private final long every;
+
+  // the write in progress, if any, and how it failed
+  private Thread writer;
+  private IOException failure;
+
+  int taken;
+
+  Checkpoint( String fileName, long every )
+  {
+    this.fileName = fileName;
+    this.every = every;
+  }
+
+  // run the program loaded in vm (with compiler, if not null),
+  // taking checkpoints along the way, until it halts, and
+  // sampling metrics, if not null, as often as they ask
+  void run( VirtualMachine vm, VPLCompiler compiler, VPLMetrics metrics )
+  {
+    vm.stopAtDebug = true;
+    long next = vm.step + every;
+    for(;;)
+    {
+      long slice = metrics != null ? Math.min( metrics.getSampleEvery(), every ) :
+                                     every;
+      long before = vm.step;
+      boolean halted = compiler != null ? compiler.run( slice ) : vm.run( slice );
+      if( metrics != null )
+        metrics.update();
+      if( halted )
+        break;
+
+      // a slice cut short was stopped by a debug op
+      if( vm.step >= next || vm.step - before < slice )
+      {
+        take( vm );
+        next = vm.step + every;
+      }
+    }
+    finish();
+  }
+
+  // copy the state of vm and start writing it out
+  void take( VirtualMachine vm )
+  {
+    finish();
+
+    // the machines running spawned calls aren't saved
+    if( vm.workers != null )
+      return;
+
+    // whatever the program has displayed so far is out before the
+    // checkpoint says it is
+    vm.io.flush();
+
+    int top = Math.min( vm.sp + 2 + vm.numPassed, vm.mem.length );
+    final int[] low = Arrays.copyOf( vm.mem, top );
+    final int[] high = vm.heapCells();
+    final long[] counts = { vm.step, vm.io.inputsRead() };
+    final int[] registers = { vm.max, vm.ip, vm.bp, vm.sp, vm.rv, vm.hp,
+                              vm.gp, vm.numPassed };
+    final byte[] program = new File( vm.fileName ).getAbsolutePath()
+                               .getBytes( StandardCharsets.UTF_8 );
+    taken++;
+    final int number = taken;
+
+    writer = new Thread( () -> {
+      try {
+        write( counts, registers, program, low, high );
+        VPLLog.println( VPLLog.trace, "checkpoint " + number + " at step " +
+                        counts[0] + " written to " + fileName );
+      }
+      catch( IOException e )
+      {
+        failure = e;
+      }
+    }, "checkpoint" );
+    writer.start();
+  }
+
+  // wait for the write in progress, if any
+  void finish()
+  {
+    if( writer == null )
+      return;
+
+    boolean interrupted = false;
+    while( writer.isAlive() )
+    {
+      try {
+        writer.join();
+      }
+      catch( InterruptedException e )
+      {
+        interrupted = true;
+      }
+    }
+    writer = null;
+    if( interrupted )
+      Thread.currentThread().interrupt();
+
+    // losing a checkpoint isn't worth stopping the program for
+    if( failure != null )
+      VPLLog.println( VPLLog.silent, "could not write checkpoint " +
+                      fileName + ": " + failure.getMessage() );
+    failure = null;
+  }
+
+  private void write( long[] counts, int[] registers, byte[] program,
+                      int[] low, int[] high ) throws IOException
+  {
+    Path temp = Paths.get( fileName + ".tmp" );
+    long headerSize = 4*2 + 8*counts.length + 4*registers.length +
+                      4 + program.length + 4*2;
+
+    try( FileChannel channel = FileChannel.open( temp,
+                   StandardOpenOption.CREATE, StandardOpenOption.READ,
+                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) )
+    {
+      MappedByteBuffer header = channel.map( FileChannel.MapMode.READ_WRITE,
+                                             0, headerSize );
+      header.putInt( magic ).putInt( version );
+      for( long count : counts )
+        header.putLong( count );
+      for( int register : registers )
+        header.putInt( register );
+      header.putInt( program.length ).put( program );
+      header.putInt( low.length ).putInt( high.length );
+      header.force();
+
+      putInts( channel, headerSize, low );
+      putInts( channel, headerSize + 4L*low.length, high );
+    }
+
+    Files.move( temp, Paths.get( fileName ), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE );
+  }
+
+  private static void putInts( FileChannel channel, long position, int[] cells )
+                                                           throws IOException
+  {
+    for( int k=0; k<cells.length; k += chunk )
+    {
+      int length = Math.min( chunk, cells.length - k );
+      MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE,
+                                             position + 4L*k, 4L*length );
+      buffer.asIntBuffer().put( cells, k, length );
+      buffer.force();
+    }
+  }
+
+  private static int[] getInts( FileChannel channel, long position, int length )
+                                                           throws IOException
+  {
+    int[] cells = new int[ length ];
+    for( int k=0; k<length; k += chunk )
+    {
+      int n = Math.min( chunk, length - k );
+      channel.map( FileChannel.MapMode.READ_ONLY, position + 4L*k, 4L*n )
+             .asIntBuffer().get( cells, k, n );
+    }
+    return cells;
+  }
+
+  // load the program saved in the checkpoint fileName into vm
+  // and put vm in the state it was in at the checkpoint
+  static void resume( VirtualMachine vm, String fileName ) throws IOException
+  {
+    long step, inputs;
+    int max, ip, bp, sp, rv, hp, gp, numPassed;
+    String program;
+    int[] low, high;
+
+    // (any trouble reading the file, say it's a folder, is the
+    // checkpoint's, not the program's)
+    try( FileChannel channel = FileChannel.open( Paths.get( fileName ),
+                                                 StandardOpenOption.READ ) )
+    {
+      long size = channel.size();
+      ByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0,
+                                       Math.min( size, 1 << 16 ) );
+      int lowLength, highLength;
+      try {
+        if( header.getInt() != magic || header.getInt() != version )
+          throw new VPLException( fileName + " is not a VPL checkpoint" );
+        step = header.getLong();  inputs = header.getLong();
+        max = header.getInt();  ip = header.getInt();
+        bp = header.getInt();  sp = header.getInt();
+        rv = header.getInt();  hp = header.getInt();
+        gp = header.getInt();  numPassed = header.getInt();
+        byte[] name = new byte[ header.getInt() ];
+        header.get( name );
+        program = new String( name, StandardCharsets.UTF_8 );
+        lowLength = header.getInt();  highLength = header.getInt();
+      }
+      catch( BufferUnderflowException | NegativeArraySizeException e )
+      {
+        throw new VPLException( fileName + " is not a whole checkpoint" );
+      }
+
+      long position = header.position();
+      if( position + 4L*lowLength + 4L*highLength != size ||
+          lowLength < gp || highLength != max - hp )
+        throw new VPLException( fileName + " is not a whole checkpoint" );
+
+      low = getInts( channel, position, lowLength );
+      high = getInts( channel, position + 4L*lowLength, highLength );
+    }
+    catch( NoSuchFileException e )
+    {
+      throw new VPLException( "can't find checkpoint " + fileName );
+    }
+    catch( IOException e )
+    {
+      throw new VPLException( "can't read checkpoint " + fileName + ": " +
+                              e.getMessage() );
+    }
+
+    vm.load( program, max );
+    if( vm.gp != gp || ! Arrays.equals( low, 0, gp, vm.mem, 0, gp ) )
+      throw new VPLException( program + " has changed since the checkpoint " +
+                              fileName + " was taken" );
+
+    // the heap, then the stack below it, leaving room for the whole
+    // frame of the running function as a call would have
+    if( ip < 0 || ip >= vm.insnAt.length || vm.insnAt[ ip ] < 0 )
+      throw new VPLException( fileName + " stops at " + ip +
+                              ", which is not an instruction" );
+    if( vm.mem.length > hp )
+      vm.mem = Arrays.copyOf( vm.mem, hp );
+    vm.restoreHeap( high, hp );
+    int needed = (int) Math.min( (long) low.length + vm.stackReserve, hp );
+    if( needed > vm.mem.length )
+      vm.growMem( needed );
+    System.arraycopy( low, 0, vm.mem, 0, low.length );
+
+    vm.ip = ip;  vm.bp = bp;  vm.sp = sp;  vm.rv = rv;
+    vm.numPassed = numPassed;
+    vm.step = step;
+    vm.collector.restore();
+    vm.io.skipInputs( inputs );
+  }
+
+}// Checkpoint
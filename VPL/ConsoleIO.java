@@ -0,0 +1,97 @@
+import java.io.*;
+import java.util.*;
+
+/*  interactive console: output is buffered, but is
+    flushed whenever the program asks for input so
+    the user sees the prompt
+*/
+
+public class ConsoleIO implements VPLIO
+{
+  private Scanner keys;
+  private PrintWriter out;
+  private long inputs, outputs;
+
+  // whether the rest of the line of the last integer read is
+  // still waiting in keys
+  private boolean midLine;
+
+  public ConsoleIO( InputStream in, OutputStream o )
+  {
+    keys = new Scanner( in );
+    out = new PrintWriter( new BufferedWriter(
+                  new OutputStreamWriter( o ), 1 << 16 ) );
+  }
+
+  public int readInt()
+  {
+    out.print("? ");
+    out.flush();
+    return nextInt();
+  }
+
+  public boolean inputReady()
+  {  return true;  }
+
+  public long inputsRead()
+  {  return inputs;  }
+
+  public void skipInputs( long count )
+  {
+    for( long k=0; k<count; ++k )
+      nextInt();
+  }
+
+  private int nextInt()
+  {
+    try {
+      int value = keys.nextInt();
+      inputs++;
+      midLine = true;
+      return value;
+    }
+    catch( InputMismatchException e )
+    {
+      throw new VPLException("input [" + keys.next() + "] is not an integer");
+    }
+    catch( NoSuchElementException e )
+    {
+      throw new VPLException("ran out of input");
+    }
+  }
+
+  // the next line typed, for the Debugger, which shares the
+  // keyboard with the program, or null at the end of input
+  String readLine()
+  {
+    out.flush();
+    if( midLine )
+    {// skip what is left of the line the program read from,
+     // unless there's more than just the newline
+      midLine = false;
+      if( keys.hasNextLine() )
+      {
+        String rest = keys.nextLine();
+        if( ! rest.trim().isEmpty() )
+          return rest;
+      }
+    }
+    return keys.hasNextLine() ? keys.nextLine() : null;
+  }
+
+  public void writeInt( int value )
+  {  outputs++;  out.print( value );  }
+
+  public void newline()
+  {  outputs++;  out.println();  }
+
+  public void symbol( int c )
+  {  outputs++;  out.print( (char) c );  }
+
+  public long outputsWritten()
+  {  return outputs;  }
+
+  public void flush()
+  {  out.flush();  }
+
+}// ConsoleIO
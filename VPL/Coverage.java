@@ -0,0 +1,296 @@
+import java.io.*;
+import java.util.*;
+
+/*  coverage mode (-coverage): the machine keeps one bit per
+    instruction, set whenever the instruction runs, and at halt
+    this writes
+
+      fileName.cov      for each function, how many of its
+                        instructions and of its Jive source lines
+                        ran, then the Jive source with each line
+                        that has code marked
+                           +  all of its code ran
+                           ~  some of its code ran
+                           -  none of its code ran
+
+    the Jive source is the program's file name without .vpl or
+    .vplb, and the function and source line of each instruction
+    come from the .doc file Jive wrote next to it.  Without a .doc
+    file that matches the code, functions are named by label as in
+    the profile, and the listing is of the VPL code instead
+
+    the bits are only set by the execution loop of the interpreter,
+    with decode making no fused calls or superinstructions, so every
+    instruction that runs is dispatched
+*/
+
+public class Coverage
+{
+  private final VirtualMachine vm;
+
+  // for each instruction, its function and Jive source line
+  // (0 if not known)
+  private String[] function;
+  private int[] line;
+
+  // start keeping coverage of the program loaded in vm
+  public Coverage( VirtualMachine vm )
+  {
+    this.vm = vm;
+    // (with a bit for the end of the code, where spawned calls return)
+    vm.covered = new long[ vm.numInsns / 64 + 1 ];
+  }
+
+  // whether instruction n has run
+  boolean ran( int n )
+  {
+    return ( vm.covered[ n >>> 6 ] & 1L << n ) != 0;
+  }
+
+  // number of instructions that have run
+  int instructionsRun()
+  {
+    int count = 0;
+    for( int n=0; n<vm.numInsns; ++n )
+      if( ran( n ) )
+        count++;
+    return count;
+  }
+
+  void report() throws IOException
+  {
+    report( vm.fileName + ".cov" );
+  }
+
+  // write the report to reportName
+  void report( String reportName ) throws IOException
+  {
+    String source = vm.fileName.replaceFirst( "\\.vplb?$", "" );
+    boolean documented = readDoc( source + ".doc" );
+    if( ! documented )
+      nameByLabel();
+
+    PrintWriter out = new PrintWriter( new BufferedWriter(
+                                          new FileWriter( reportName ) ) );
+    int numInsns = vm.numInsns;
+    int run = instructionsRun();
+    out.printf("coverage of %s: %d of %d instructions ran (%.1f%%)%n",
+               vm.fileName, run, numInsns, percent( run, numInsns ) );
+
+    // by function, in the order they are in the code
+    LinkedHashMap<String,int[]> byFunc = new LinkedHashMap<String,int[]>();
+    for( int n=0; n<numInsns; ++n )
+    {
+      int[] totals = byFunc.get( function[n] );
+      if( totals == null )
+      {
+        totals = new int[2];
+        byFunc.put( function[n], totals );
+      }
+      totals[0]++;
+      if( ran( n ) )
+        totals[1]++;
+    }
+
+    // lines, with how much of each one's code ran
+    TreeMap<Integer,int[]> byLine = lines();
+    HashMap<String,int[]> linesByFunc = new HashMap<String,int[]>();
+    HashSet<Integer> counted = new HashSet<Integer>();
+    for( int n=0; n<numInsns; ++n )
+    {
+      if( line[n] == 0 || ! counted.add( line[n] ) )
+        continue;
+      int[] totals = linesByFunc.get( function[n] );
+      if( totals == null )
+      {
+        totals = new int[3];
+        linesByFunc.put( function[n], totals );
+      }
+      int[] code = byLine.get( line[n] );
+      totals[0]++;
+      if( code[1] == code[0] )
+        totals[1]++;
+      else if( code[1] > 0 )
+        totals[2]++;
+    }
+
+    out.println();
+    out.printf("  %-16s %12s %8s %8s", "function", "instructions", "ran", "%");
+    if( documented )
+      out.printf(" %8s %8s %8s", "lines", "all ran", "some");
+    out.println();
+    for( String f : byFunc.keySet() )
+    {
+      int[] totals = byFunc.get( f );
+      out.printf("  %-16s %12d %8d %7.1f%%", f, totals[0], totals[1],
+                 percent( totals[1], totals[0] ) );
+      int[] lines = linesByFunc.get( f );
+      if( documented && lines != null )
+        out.printf(" %8d %8d %8d", lines[0], lines[1], lines[2] );
+      out.println();
+    }
+
+    out.println();
+    if( documented && new File( source ).isFile() )
+    {
+      out.println("listing of " + source + ":");
+      BufferedReader in = new BufferedReader( new FileReader( source ) );
+      int k = 0;
+      for( String text = in.readLine(); text != null; text = in.readLine() )
+      {
+        k++;
+        out.printf("%5d %c  %s%n", k, mark( byLine.get( k ) ), text );
+      }
+      in.close();
+    }
+    else
+    {
+      out.println("listing of " + vm.fileName + ":");
+      for( int n=0; n<numInsns; ++n )
+        out.printf("%c %6d  %s%n", ran( n ) ? '+' : '-', vm.dAddr[n],
+                   disassemble( vm.dAddr[n] ) );
+    }
+    out.close();
+
+    VPLLog.println( VPLLog.summary, "coverage written to " + reportName + ": " +
+                    run + " of " + numInsns + " instructions ran" );
+  }
+
+  // fill in function and line from the .doc file Jive wrote for the
+  // program, returning whether there is one and it matches the code
+  //   it lists, in order, the instructions Jive made (including
+  //   the labels, which aren't loaded), each as
+  //     [index] line k    opcode operands
+  //   with a line of dashes around the name of each function
+  //   before its code
+  private boolean readDoc( String docName ) throws IOException
+  {
+    File doc = new File( docName );
+    if( ! doc.isFile() )
+      return false;
+
+    int numInsns = vm.numInsns;
+    function = new String[ numInsns ];
+    line = new int[ numInsns ];
+    String name = "main";
+    int address = 0, count = 0;
+
+    try( BufferedReader in = new BufferedReader( new FileReader( doc ) ) )
+    {
+      for( String text = in.readLine(); text != null; text = in.readLine() )
+      {
+        if( text.startsWith( "---" ) )
+        {
+          name = text.replace( "-", "" ).trim();
+          if( name.equals( "?" ) )
+            name = "main";
+          continue;
+        }
+        if( ! text.startsWith( "[" ) )
+          continue;
+
+        String[] words = text.substring( text.indexOf( ']' ) + 1 ).trim()
+                                                             .split( "\\s+" );
+        if( words.length < 3 || ! words[0].equals( "line" ) )
+          return false;
+        int op = Integer.parseInt( words[2] );
+        if( op == VirtualMachine.labelCode )
+          continue;  // a label
+
+        if( address >= vm.gp || vm.insnAt[ address ] < 0 ||
+            vm.mem[ address ] != op )
+          return false;
+        int n = vm.insnAt[ address ];
+        function[n] = name;
+        line[n] = Integer.parseInt( words[1] );
+        address += words.length - 2;
+        count++;
+      }
+    }
+    catch( NumberFormatException e )
+    {
+      return false;
+    }
+    return count == numInsns && address == vm.gp;
+  }
+
+  // name each instruction by the label of the call or spawn
+  // target at or before it, as the profile does
+  private void nameByLabel()
+  {
+    int numInsns = vm.numInsns;
+    function = new String[ numInsns ];
+    line = new int[ numInsns ];
+
+    boolean[] target = new boolean[ numInsns+1 ];
+    for( int n=0; n<numInsns; ++n )
+    {
+      int op = vm.mem[ vm.dAddr[n] ];
+      if( op == VirtualMachine.callCode || op == VirtualMachine.spawnCode )
+        target[ vm.insnAt[ vm.mem[ vm.dAddr[n]+1 ] ] ] = true;
+    }
+
+    String name = "main";
+    for( int n=0; n<numInsns; ++n )
+    {
+      if( target[n] )
+      {
+        name = "@" + vm.dAddr[n];
+        for( int label : vm.labels.keys() )
+          if( vm.labels.get( label ) == vm.dAddr[n] )
+            name = "L" + label;
+      }
+      function[n] = name;
+    }
+  }
+
+  // for each Jive source line with code, how many of its
+  // instructions there are and how many of them ran
+  private TreeMap<Integer,int[]> lines()
+  {
+    TreeMap<Integer,int[]> byLine = new TreeMap<Integer,int[]>();
+    for( int n=0; n<vm.numInsns; ++n )
+    {
+      if( line[n] == 0 )
+        continue;
+      int[] code = byLine.get( line[n] );
+      if( code == null )
+      {
+        code = new int[2];
+        byLine.put( line[n], code );
+      }
+      code[0]++;
+      if( ran( n ) )
+        code[1]++;
+    }
+    return byLine;
+  }
+
+  private static char mark( int[] code )
+  {
+    if( code == null )
+      return ' ';
+    else if( code[1] == code[0] )
+      return '+';
+    else if( code[1] == 0 )
+      return '-';
+    else
+      return '~';
+  }
+
+  // the instruction at address k, as loaded
+  private String disassemble( int k )
+  {
+    int op = vm.mem[k];
+    StringBuilder s = new StringBuilder( VirtualMachine.opName( op ) );
+    for( int j=1; j<VirtualMachine.instrLength( op ); ++j )
+      s.append( " " + vm.mem[k+j] );
+    return s.toString();
+  }
+
+  private static double percent( int part, int whole )
+  {
+    return 100.0 * part / Math.max( whole, 1 );
+  }
+
+}// Coverage
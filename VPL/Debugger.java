@@ -0,0 +1,511 @@
+import java.io.*;
+import java.util.*;
+
+/*  interactive debugger (-debug): runs the program under commands
+    typed at the console, sharing the keyboard with the program
+
+    a breakpoint is made by patching the breakCode opcode over its
+    instruction in the pre-decoded stream, where the execution loop
+    stops, so the loop runs exactly as usual, with nothing to check,
+    until it comes to one.  Going on from a breakpoint puts the
+    instruction back just long enough to execute it.  Decoding is
+    done without fused calls and superinstructions, so that every
+    instruction can be stopped at.
+
+    watchpoints stop the program when the value of a cell changes,
+    which can only be seen by executing one instruction at a time,
+    so the program runs much slower while any are set.  A debug op
+    in the program stops it too.
+*/
+
+public class Debugger
+{
+  private final VirtualMachine vm;
+  private final ConsoleIO io;
+  private final PrintWriter out;
+
+  // original opcode of each instruction with a breakpoint patched in
+  private final HashMap<Integer,Integer> breakpoints = new HashMap<Integer,Integer>();
+
+  // address of each watched cell -> its value when last looked at
+  private final TreeMap<Integer,Integer> watches = new TreeMap<Integer,Integer>();
+
+  // label at each labeled address, and the addresses that are called
+  private final HashMap<Integer,Integer> labelAt = new HashMap<Integer,Integer>();
+  private final TreeSet<Integer> functions = new TreeSet<Integer>();
+
+  // why the program last stopped, and whether it can go on
+  private String why;
+  private boolean dead;
+
+  public Debugger( VirtualMachine vm, ConsoleIO io )
+  {
+    this.vm = vm;
+    this.io = io;
+    out = new PrintWriter( new BufferedWriter(
+                    new OutputStreamWriter( new FileOutputStream( FileDescriptor.out ) ) ) );
+
+    for( int label : vm.labels.keys() )
+      labelAt.put( vm.labels.get( label ), label );
+    for( int n=0; n<vm.numInsns; ++n )
+      if( vm.mem[ vm.dAddr[n] ] == VirtualMachine.callCode )
+        functions.add( vm.mem[ vm.dAddr[n]+1 ] );
+
+    vm.stopAtDebug = true;
+  }
+
+  // take commands until the program halts or the user quits,
+  // returning whether it halted
+  boolean run()
+  {
+    say( "debugging " + vm.fileName + ", type help for the commands" );
+    showWhere();
+
+    for(;;)
+    {
+      out.print( "(vpl) " );
+      out.flush();
+      String line = io.readLine();
+      if( line == null )
+        return vm.halted;
+
+      String[] words = line.trim().split( "\\s+" );
+      String command = words[0];
+      try {
+        if( command.isEmpty() )
+          continue;
+        else if( command.equals( "quit" ) || command.equals( "q" ) )
+          return vm.halted;
+        else if( command.equals( "help" ) || command.equals( "h" ) )
+          help();
+        else if( command.equals( "break" ) || command.equals( "b" ) )
+          setBreak( words );
+        else if( command.equals( "delete" ) || command.equals( "d" ) )
+          deleteBreak( words );
+        else if( command.equals( "watch" ) || command.equals( "w" ) )
+          watch( words );
+        else if( command.equals( "unwatch" ) )
+          unwatch( words );
+        else if( command.equals( "info" ) || command.equals( "i" ) )
+          info();
+        else if( command.equals( "regs" ) || command.equals( "r" ) )
+          registers();
+        else if( command.equals( "frame" ) || command.equals( "f" ) )
+          frame();
+        else if( command.equals( "stack" ) || command.equals( "bt" ) )
+          stack();
+        else if( command.equals( "mem" ) || command.equals( "x" ) )
+          memory( words );
+        else if( command.equals( "list" ) || command.equals( "l" ) )
+          list( words );
+        else if( command.equals( "step" ) || command.equals( "s" ) )
+          go( "step" );
+        else if( command.equals( "next" ) || command.equals( "n" ) )
+          go( "next" );
+        else if( command.equals( "finish" ) )
+          go( "finish" );
+        else if( command.equals( "continue" ) || command.equals( "c" ) )
+          go( "continue" );
+        else
+          say( "unknown command " + command + ", type help for the commands" );
+      }
+      catch( NumberFormatException | ArrayIndexOutOfBoundsException e )
+      {
+        say( "can't make sense of: " + line.trim() );
+      }
+
+      if( vm.halted )
+      {
+        say( "program halted after " + vm.step + " instructions" );
+        return true;
+      }
+    }
+  }
+
+  private void help()
+  {
+    say( "break <address>|L<label>  stop before the instruction there" );
+    say( "delete [<address>|L<label>]  remove that breakpoint, or all" );
+    say( "watch <address>       stop when the value of the cell changes" );
+    say( "unwatch [<address>]   stop watching that cell, or any" );
+    say( "step                  execute one instruction" );
+    say( "next                  same, but run a call to its return" );
+    say( "finish                run until the current function returns" );
+    say( "continue              run until a breakpoint, watch, debug op, or halt" );
+    say( "regs                  show the registers" );
+    say( "frame                 show the cells of the current frame" );
+    say( "stack                 show the calls in progress" );
+    say( "mem <address> [n]     show n cells (default 8) from address" );
+    say( "list [<address>] [n]  show n instructions (default 10)" );
+    say( "info                  list breakpoints and watches" );
+    say( "quit" );
+  }
+
+  // run the program as the command asks, then say why it stopped
+  private void go( String how )
+  {
+    if( dead )
+    {
+      say( "the program can't go on after a fatal error" );
+      return;
+    }
+
+    why = null;
+    try {
+      int n = vm.insnAt[ vm.ip ];
+      if( how.equals( "step" ) )
+      {
+        stepOne();
+        checkWatches();
+      }
+      else if( how.equals( "next" ) && vm.mem[ vm.ip ] == VirtualMachine.callCode )
+        runUntil( n+1, vm.bp );
+      else if( how.equals( "next" ) )
+      {
+        stepOne();
+        checkWatches();
+      }
+      else if( how.equals( "finish" ) )
+      {
+        if( vm.bp + 1 >= vm.mem.length || vm.mem[ vm.bp+1 ] >= vm.bp ||
+            vm.mem[ vm.bp+1 ] < vm.gp )
+          say( "not in a call" );
+        else
+          runUntil( vm.insnAt[ vm.mem[ vm.bp ] ], vm.mem[ vm.bp+1 ] );
+      }
+      else
+        runOn();
+    }
+    catch( VPLException e )
+    {
+      io.flush();
+      say( "Fatal error: " + e.getMessage() );
+      dead = true;
+      return;
+    }
+
+    if( ! vm.halted )
+    {
+      if( why != null )
+        say( why );
+      showWhere();
+    }
+  }
+
+  // execute one instruction, even if it has a breakpoint
+  private void stepOne()
+  {
+    int n = vm.insnAt[ vm.ip ];
+    Integer op = breakpoints.get( n );
+    if( op != null )
+      vm.dOp[n] = op;
+    try {
+      vm.run( 1 );
+    }
+    finally
+    {
+      if( op != null )
+        vm.dOp[n] = VirtualMachine.breakCode;
+    }
+  }
+
+  // go on until halt, a breakpoint, a debug op, or a watched cell changes
+  private void runOn()
+  {
+    int k = vm.ip;
+    stepOne();
+    if( vm.halted || checkWatches() || debugAt( k ) )
+      return;
+
+    if( watches.isEmpty() )
+    {
+      vm.run( Long.MAX_VALUE );
+      if( ! vm.halted && ! vm.atBreakpoint )
+      {// only a debug op stops it otherwise, just before ip
+        debugAt( vm.dAddr[ vm.insnAt[ vm.ip ] - 1 ] );
+      }
+    }
+    else
+    {
+      do {
+        k = vm.ip;
+      }while( ! vm.run( 1 ) && ! vm.atBreakpoint && ! checkWatches() &&
+              ! debugAt( k ) );
+    }
+
+    if( vm.atBreakpoint )
+      why = "breakpoint at " + name( vm.ip );
+  }
+
+  // go on until control is at instruction n with bp the given frame
+  // (so a call, or the call in progress, has returned), or some other
+  // reason to stop comes first
+  private void runUntil( int n, int frame )
+  {
+    boolean temporary = ! breakpoints.containsKey( n );
+    if( temporary )
+      patch( n );
+    try {
+      for(;;)
+      {
+        runOn();
+        if( vm.halted || ! vm.atBreakpoint || vm.insnAt[ vm.ip ] != n )
+          return;
+        if( vm.bp == frame )
+        {
+          if( temporary )
+            why = null;
+          return;
+        }
+        // a deeper call came by the same place, keep going
+      }
+    }
+    finally
+    {
+      if( temporary )
+        unpatch( n );
+    }
+  }
+
+  // whether the instruction at k, just executed, is a debug op,
+  // which stops the program
+  private boolean debugAt( int k )
+  {
+    if( vm.mem[k] != VirtualMachine.debugCode )
+      return false;
+    why = "debug op at " + k;
+    return true;
+  }
+
+  // look for changes in the watched cells, saying what changed
+  private boolean checkWatches()
+  {
+    boolean changed = false;
+    for( Map.Entry<Integer,Integer> w : watches.entrySet() )
+    {
+      int value = cell( w.getKey() );
+      if( value != w.getValue() )
+      {
+        why = ( why == null ? "" : why + "\n" ) + "cell " + w.getKey() +
+              " changed from " + w.getValue() + " to " + value;
+        w.setValue( value );
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private void setBreak( String[] words )
+  {
+    int address = address( words[1] );
+    if( address < 0 || address >= vm.insnAt.length || vm.insnAt[ address ] < 0 )
+      say( words[1] + " is not the address of an instruction" );
+    else if( breakpoints.containsKey( vm.insnAt[ address ] ) )
+      say( "there already is a breakpoint at " + name( address ) );
+    else
+    {
+      patch( vm.insnAt[ address ] );
+      say( "breakpoint at " + name( address ) );
+    }
+  }
+
+  private void deleteBreak( String[] words )
+  {
+    if( words.length == 1 )
+    {
+      for( int n : new ArrayList<Integer>( breakpoints.keySet() ) )
+        unpatch( n );
+      say( "deleted all breakpoints" );
+      return;
+    }
+
+    int address = address( words[1] );
+    if( address < 0 || address >= vm.insnAt.length ||
+        ! breakpoints.containsKey( vm.insnAt[ address ] ) )
+      say( "there is no breakpoint at " + words[1] );
+    else
+      unpatch( vm.insnAt[ address ] );
+  }
+
+  private void patch( int n )
+  {
+    breakpoints.put( n, vm.dOp[n] );
+    vm.dOp[n] = VirtualMachine.breakCode;
+  }
+
+  private void unpatch( int n )
+  {
+    vm.dOp[n] = breakpoints.remove( n );
+  }
+
+  private void watch( String[] words )
+  {
+    int address = Integer.parseInt( words[1] );
+    if( address < 0 || address >= vm.max )
+      say( address + " is not a cell" );
+    else
+    {
+      watches.put( address, cell( address ) );
+      say( "watching cell " + address + ", now " + cell( address ) );
+    }
+  }
+
+  private void unwatch( String[] words )
+  {
+    if( words.length == 1 )
+      watches.clear();
+    else
+      watches.remove( Integer.parseInt( words[1] ) );
+  }
+
+  private void info()
+  {
+    if( breakpoints.isEmpty() )
+      say( "no breakpoints" );
+    for( int n : new TreeSet<Integer>( breakpoints.keySet() ) )
+      say( "breakpoint at " + name( vm.dAddr[n] ) );
+    if( watches.isEmpty() )
+      say( "no watches" );
+    for( Map.Entry<Integer,Integer> w : watches.entrySet() )
+      say( "watching cell " + w.getKey() + ", now " + w.getValue() );
+  }
+
+  private void registers()
+  {
+    say( "ip = " + vm.ip + "  bp = " + vm.bp + "  sp = " + vm.sp +
+         "  rv = " + vm.rv + "  hp = " + vm.hp + "  gp = " + vm.gp +
+         "  passed = " + vm.numPassed + "  step = " + vm.step );
+  }
+
+  // the cells of the current frame, and any cells being passed
+  private void frame()
+  {
+    say( "frame of " + function( vm.ip ) + " at bp = " + vm.bp +
+         ", returning to " + vm.mem[ vm.bp ] );
+    for( int a=vm.bp+2; a<vm.sp; ++a )
+      say( String.format( "  cell %-4d [%d] = %d", a - vm.bp - 2, a, cell(a) ) );
+    for( int j=0; j<vm.numPassed; ++j )
+      say( String.format( "  passing %-3d [%d] = %d", j, vm.sp + 2 + j,
+                          cell( vm.sp + 2 + j ) ) );
+  }
+
+  // the calls in progress, most recent first, following the saved
+  // bp of each frame down to main
+  private void stack()
+  {
+    int ip = vm.ip, bp = vm.bp;
+    for( int depth=0; depth<100; ++depth )
+    {
+      say( "#" + depth + "  " + function( ip ) + " at " + ip + ", bp = " + bp );
+      int caller = cell( bp+1 );
+      if( caller >= bp || caller < vm.gp )
+        return;
+      ip = cell( bp );
+      bp = caller;
+    }
+    say( "..." );
+  }
+
+  private void memory( String[] words )
+  {
+    int address = Integer.parseInt( words[1] );
+    int count = words.length > 2 ? Integer.parseInt( words[2] ) : 8;
+    for( int a=address; a<address+count && a<vm.max; ++a )
+      if( a >= 0 )
+        say( String.format( "  [%d] = %d", a, cell(a) ) );
+  }
+
+  private void list( String[] words )
+  {
+    int address = words.length > 1 ? address( words[1] ) : vm.ip;
+    int count = words.length > 2 ? Integer.parseInt( words[2] ) : 10;
+    if( address < 0 || address >= vm.insnAt.length || vm.insnAt[ address ] < 0 )
+    {
+      say( words[1] + " is not the address of an instruction" );
+      return;
+    }
+    for( int n=vm.insnAt[ address ]; n<vm.numInsns && count>0; ++n, --count )
+      say( disassemble( vm.dAddr[n] ) );
+  }
+
+  // the instruction at address k, marked if it is where ip is,
+  // or has a breakpoint
+  private String disassemble( int k )
+  {
+    int op = vm.mem[k];
+    StringBuilder s = new StringBuilder();
+    s.append( k == vm.ip ? "=> " : "   " );
+    s.append( breakpoints.containsKey( vm.insnAt[k] ) ? "* " : "  " );
+    s.append( String.format( "%6d  ", k ) );
+    if( labelAt.containsKey( k ) )
+      s.append( "L" + labelAt.get( k ) + ": " );
+    s.append( VirtualMachine.opName( op ) );
+    int length = VirtualMachine.instrLength( op );
+    for( int j=1; j<length; ++j )
+    {
+      int operand = vm.mem[k+j];
+      if( j == 1 && ( op == VirtualMachine.callCode || op == VirtualMachine.jumpCode ||
+                      op == VirtualMachine.condJumpCode ||
+                      op == VirtualMachine.spawnCode ) &&
+          labelAt.containsKey( operand ) )
+        s.append( " L" + labelAt.get( operand ) );
+      else
+        s.append( " " + operand );
+    }
+    return s.toString();
+  }
+
+  private void showWhere()
+  {
+    say( disassemble( vm.ip ) );
+  }
+
+  // an address typed as a number or as L followed by a label
+  private int address( String word )
+  {
+    if( word.startsWith( "L" ) )
+    {
+      int label = Integer.parseInt( word.substring(1) );
+      int address = vm.labels.get( label );
+      if( address < 0 )
+        say( "there is no label " + label );
+      return address;
+    }
+    return Integer.parseInt( word );
+  }
+
+  // an address with its label, if it has one
+  private String name( int address )
+  {
+    return labelAt.containsKey( address ) ?
+           address + " (L" + labelAt.get( address ) + ")" : "" + address;
+  }
+
+  // the function that the instruction at address k is in
+  private String function( int k )
+  {
+    Integer start = functions.floor( k );
+    if( start == null )
+      return "main";
+    return labelAt.containsKey( start ) ? "L" + labelAt.get( start ) : "@" + start;
+  }
+
+  // the value in cell a, wherever it is kept
+  private int cell( int a )
+  {
+    if( 0 <= a && a < vm.mem.length )
+      return vm.mem[a];
+    else if( a >= vm.heapBase && a < vm.max )
+      return vm.heapCell( a );
+    else
+      return 0;
+  }
+
+  private void say( String message )
+  {
+    io.flush();
+    out.println( message );
+    out.flush();
+  }
+
+}// Debugger
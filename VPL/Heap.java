@@ -0,0 +1,280 @@
+import java.util.*;
+
+/*  allocator behind the new op, with a mark-sweep
+    garbage collector so heap cells can be reused
+
+    each block of the heap is a header cell followed by
+    the cells of the block:
+       header >= 0     block is in use and holds header cells
+       header < 0      block is free and holds -header-1 cells
+    the address returned by new is the cell after the header,
+    and blocks run from hp up to max without gaps
+
+    VPL cells have no types, so the collector is conservative:
+    any value in the globals, the stack (gp up to the top of
+    the stack), or rv that lands inside a block in use keeps
+    that block alive, and so does any value stored in a live
+    block.  Nothing is moved, since a value that looks like an
+    address might not be one.
+
+    each machine has its own Heap, and reaches the cells of its
+    heap segment through the machine, wherever they are kept
+    (the machines running spawned calls share the Heap of the
+    one that spawned them, and their rv registers are roots too)
+*/
+
+public class Heap
+{
+  private final VirtualMachine vm;
+
+  // set to false by -nogc to only ever take fresh cells
+  boolean collecting = true;
+
+  int collections;
+  long cellsFreed;
+
+  // addresses of the headers of free blocks, in no particular order
+  private int[] free = new int[64];
+  private int numFree;
+
+  // collect once this many cells (or the number still in use after
+  // the last collection, if larger) have been allocated since the last one
+  private static final int minCellsBetween = 1 << 16;
+  private long allocatedSince, liveAfter;
+
+  Heap( VirtualMachine vm )
+  {
+    this.vm = vm;
+  }
+
+  // forget all blocks, for a freshly loaded program
+  void reset()
+  {
+    numFree = 0;
+    allocatedSince = 0;  liveAfter = 0;
+    collections = 0;  cellsFreed = 0;
+  }
+
+  // rebuild the list of free blocks from the block headers, for
+  // a heap restored from a checkpoint
+  void restore()
+  {
+    reset();
+    for( int a=vm.hp; a<vm.max; a += length( vm.heapCell( a ) ) + 1 )
+      if( vm.heapCell( a ) < 0 )
+        addFree( a, a + length( vm.heapCell( a ) ) + 1 );
+  }
+
+  // return the address of a new block of size cells, all 0,
+  // where stackTop is the first cell above the stack and rv is
+  // the current value of the rv register (both are roots)
+  int allocate( int size, int stackTop, int rv )
+  {
+    if( size < 0 )
+      vm.fatal("new asked for " + size + " cells");
+
+    // the running function may still use this many cells above
+    // stackTop without checking, so the heap has to stay clear of them
+    long stackLimit = (long) stackTop + vm.stackReserve;
+
+    // and it can't go below where -maxheap puts its floor
+    long floor = vm.limits != null ?
+                    Math.max( stackLimit, vm.limits.heapFloor( vm.max ) ) : stackLimit;
+
+    if( collecting && allocatedSince > Math.max( liveAfter, minCellsBetween ) )
+      collect( stackTop, rv );
+
+    int block = takeFree( size );
+
+    if( block < 0 && collecting && (long) vm.hp - size - 1 < floor )
+    {// about to run into the stack (or the -maxheap floor), so try
+     // to get some cells back first
+      collect( stackTop, rv );
+      block = takeFree( size );
+    }
+
+    if( block < 0 )
+    {// take fresh cells below hp
+      long newHp = (long) vm.hp - size - 1;
+      if( newHp < floor && floor > stackLimit )
+        throw new Limits.Exceeded( vm, "heap", vm.limits.maxHeap );
+      if( newHp < stackLimit )
+        vm.fatal("out of memory: new of " + size + " cells runs into the stack at " +
+                  stackLimit + " (hp = " + vm.hp + ")" );
+      if( newHp < vm.heapBase )
+        vm.growHeap( (int) newHp, (int) stackLimit );
+      vm.hp = (int) newHp;
+      block = vm.hp;
+    }
+
+    vm.setHeapCell( block, size );
+    vm.clearHeap( block+1, block+1+size );
+
+    allocatedSince += size + 1;
+    return block + 1;
+  }
+
+  // return the header address of a block made from a free block of at
+  // least size cells, or -1 if there is none
+  private int takeFree( int size )
+  {
+    for( int k=0; k<numFree; ++k )
+    {
+      int block = free[k];
+      int have = -vm.heapCell( block ) - 1;
+
+      if( have == size )
+      {// use the whole block
+        numFree--;
+        free[k] = free[ numFree ];
+        return block;
+      }
+      else if( have > size )
+      {// use the front, the rest becomes a smaller free block
+        int rest = block + size + 1;
+        vm.setHeapCell( rest, -(have - size - 1) - 1 );
+        free[k] = rest;
+        return block;
+      }
+    }
+
+    return -1;
+  }
+
+  // state of a collection: header address of every block in
+  // increasing order, which of them are known to be live, and the
+  // live blocks whose cells have not been scanned yet
+  private int[] starts = new int[64];
+  private int numBlocks;
+  private boolean[] marked;
+  private int[] work = new int[64];
+  private int numWork;
+
+  // find all blocks reachable from the roots, and make
+  // all the other blocks free
+  void collect( int stackTop, int rv )
+  {
+    int[] mem = vm.mem;
+    int max = vm.max;
+
+    numBlocks = 0;
+    for( int a=vm.hp; a<max; a += length( vm.heapCell( a ) ) + 1 )
+    {
+      if( numBlocks == starts.length )
+        starts = Arrays.copyOf( starts, 2*numBlocks );
+      starts[ numBlocks ] = a;  numBlocks++;
+    }
+
+    // mark
+    marked = new boolean[ numBlocks ];
+    numWork = 0;
+
+    mark( rv );
+    if( vm.workers != null )
+      for( int r : vm.workers.registers() )
+        mark( r );
+    for( int a=vm.gp; a<stackTop && a<mem.length; ++a )
+      mark( mem[a] );
+
+    while( numWork > 0 )
+    {
+      numWork--;
+      int b = starts[ work[ numWork ] ];
+      int end = b + vm.heapCell( b );
+      for( int a=b+1; a<=end; ++a )
+        mark( vm.heapCell( a ) );
+    }
+
+    // sweep, joining neighboring free blocks
+    numFree = 0;
+    long live = 0, freed = 0;
+    int runStart = -1;
+    for( int k=0; k<numBlocks; ++k )
+    {
+      int b = starts[k];
+      int header = vm.heapCell( b );
+      if( marked[k] )
+      {
+        live += header + 1;
+        if( runStart >= 0 )
+          addFree( runStart, b );
+        runStart = -1;
+      }
+      else
+      {
+        if( header >= 0 )
+          freed += header + 1;
+        if( runStart < 0 )
+          runStart = b;
+      }
+    }
+    if( runStart >= 0 )
+      addFree( runStart, max );
+    marked = null;
+
+    // a free block at the bottom of the heap just goes back to
+    // being unallocated
+    for( int k=0; k<numFree; ++k )
+    {
+      if( free[k] == vm.hp )
+      {
+        vm.hp += length( vm.heapCell( vm.hp ) ) + 1;
+        numFree--;
+        free[k] = free[ numFree ];
+        break;
+      }
+    }
+
+    collections++;
+    cellsFreed += freed;
+    liveAfter = live;
+    allocatedSince = 0;
+
+    VPLLog.println( VPLLog.trace, "garbage collection " + collections +
+          ": " + freed + " cells freed, " + live + " cells in use, hp = " + vm.hp );
+  }
+
+  // if value lands in an unmarked block in use, mark it
+  // and put it on the work list
+  private void mark( int value )
+  {
+    if( value < vm.hp || value >= vm.max )
+      return;
+
+    // find the last block starting at or before value
+    int lo = 0, hi = numBlocks-1;
+    while( lo < hi )
+    {
+      int mid = (lo + hi + 1) >>> 1;
+      if( starts[mid] <= value )
+        lo = mid;
+      else
+        hi = mid-1;
+    }
+
+    if( marked[lo] || vm.heapCell( starts[lo] ) < 0 )
+      return;
+
+    marked[lo] = true;
+    if( numWork == work.length )
+      work = Arrays.copyOf( work, 2*numWork );
+    work[ numWork ] = lo;  numWork++;
+  }
+
+  // number of cells in a block with the given header
+  private int length( int header )
+  {
+    return header >= 0 ? header : -header - 1;
+  }
+
+  // make the cells from header address b up to (not including) end
+  // one free block
+  private void addFree( int b, int end )
+  {
+    vm.setHeapCell( b, -(end - b - 1) - 1 );
+    if( numFree == free.length )
+      free = Arrays.copyOf( free, 2*numFree );
+    free[ numFree ] = b;  numFree++;
+  }
+
+}// Heap
@@ -0,0 +1,100 @@
+/*  map from int keys to non-negative int values,
+    using open addressing with linear probing so
+    nothing gets boxed,
+    used by the loader to find the index of each label
+*/
+
+public class IntIntMap
+{
+  private int[] keys, values;
+  private boolean[] used;
+  private int size;
+
+  public IntIntMap()
+  {  this( 16 );  }
+
+  public IntIntMap( int expected )
+  {
+    int cap = 16;
+    while( cap < 2*expected )
+      cap *= 2;
+    keys = new int[cap];  values = new int[cap];  used = new boolean[cap];
+  }
+
+  public int size()
+  {  return size;  }
+
+  // return the value stored for key, or -1 if there is none
+  public int get( int key )
+  {
+    int mask = keys.length-1;
+    for( int k=hash( key ) & mask; used[k]; k = (k+1) & mask )
+    {
+      if( keys[k] == key )
+        return values[k];
+    }
+    return -1;
+  }
+
+  // store value for key, returning the value previously stored
+  // for key, or -1 if there was none
+  public int put( int key, int value )
+  {
+    if( 2*(size+1) > keys.length )
+      grow();
+
+    int mask = keys.length-1;
+    int k = hash( key ) & mask;
+    while( used[k] )
+    {
+      if( keys[k] == key )
+      {
+        int old = values[k];
+        values[k] = value;
+        return old;
+      }
+      k = (k+1) & mask;
+    }
+
+    used[k] = true;  keys[k] = key;  values[k] = value;
+    size++;
+    return -1;
+  }
+
+  // return all the keys, in no particular order
+  public int[] keys()
+  {
+    int[] result = new int[size];
+    int n = 0;
+    for( int k=0; k<keys.length; ++k )
+      if( used[k] )
+      {
+        result[n] = keys[k];  n++;
+      }
+    return result;
+  }
+
+  // labels tend to be runs of consecutive ints (1000, 1001, ...),
+  // so scramble the bits before masking
+  private static int hash( int key )
+  {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private void grow()
+  {
+    int[] oldKeys = keys, oldValues = values;
+    boolean[] oldUsed = used;
+
+    keys = new int[ 2*oldKeys.length ];
+    values = new int[ 2*oldKeys.length ];
+    used = new boolean[ 2*oldKeys.length ];
+    size = 0;
+
+    for( int k=0; k<oldKeys.length; ++k )
+      if( oldUsed[k] )
+        put( oldKeys[k], oldValues[k] );
+  }
+
+}// IntIntMap
@@ -0,0 +1,192 @@
+import java.util.function.LongPredicate;
+
+/*  limits on one run of a VPL program (-maxsteps, -maxtime,
+    -maxstack, -maxheap), for running programs that can't be
+    trusted to stop:
+
+       instructions   executed since the program was loaded
+       time           wall clock ms since it first ran
+       stack          cells the stack may reach above the code
+       heap           cells the heap segment may take
+
+    none of them adds work per instruction.  run( count ) goes a
+    slice of at most sliceSteps instructions at a time (which the
+    interpreter counts down anyway, and the compiled code checks at
+    calls and jumps back) and looks at the count and the clock
+    between slices.  The stack is checked where a call already
+    checks for room, and the heap where new takes fresh cells.
+    So time is only looked at while the program is running: one
+    waiting for input (from the keyboard, say) can go past it, and
+    is stopped at the first slice after the input comes
+
+    a run that hits a limit stops with Exceeded, a VPLException
+    that also tells which limit, at what ip, and how much of
+    everything the program had used
+*/
+
+public class Limits
+{
+  // instructions between looks at the clock
+  static final long sliceSteps = 1 << 20;
+
+  long maxSteps = Long.MAX_VALUE;
+  long maxMillis = Long.MAX_VALUE;
+  int maxStack = Integer.MAX_VALUE;
+  int maxHeap = Integer.MAX_VALUE;
+
+  // whether a limit option had a value that isn't a number
+  private boolean malformed;
+
+  // System.nanoTime() when the program first ran, once it has
+  private long startNanos;
+  private boolean started;
+
+  Limits()
+  {
+  }
+
+  // the same limits, for another run
+  Limits( Limits other )
+  {
+    maxSteps = other.maxSteps;  maxMillis = other.maxMillis;
+    maxStack = other.maxStack;  maxHeap = other.maxHeap;
+  }
+
+  // if args[k] is a limit option, take it and its value from
+  // args[k+1] and return true (a value that isn't a number
+  // leaves the limits not valid, for the caller to report)
+  boolean option( String[] args, int k )
+  {
+    try {
+      if( k+1 >= args.length )
+        return false;
+      else if( args[k].equals( "-maxsteps" ) )
+        maxSteps = Long.parseLong( args[k+1] );
+      else if( args[k].equals( "-maxtime" ) )
+        maxMillis = Long.parseLong( args[k+1] );
+      else if( args[k].equals( "-maxstack" ) )
+        maxStack = Integer.parseInt( args[k+1] );
+      else if( args[k].equals( "-maxheap" ) )
+        maxHeap = Integer.parseInt( args[k+1] );
+      else
+        return false;
+    }
+    catch( NumberFormatException e )
+    {
+      malformed = true;
+    }
+    return true;
+  }
+
+  // whether every limit given is a positive number
+  boolean valid()
+  {
+    return ! malformed &&
+           maxSteps > 0 && maxMillis > 0 && maxStack > 0 && maxHeap > 0;
+  }
+
+  static final String usage =
+     "[-maxsteps <n>] [-maxtime <ms>] [-maxstack <cells>] [-maxheap <cells>]";
+
+  // run the program on vm as run( count ) does, with runner doing
+  // the running (the interpreter or the compiled code), a slice
+  // at a time
+  boolean run( VirtualMachine vm, long count, LongPredicate runner )
+  {
+    if( ! started )
+    {
+      startNanos = System.nanoTime();
+      started = true;
+    }
+
+    long end = vm.step + Math.min( count, Long.MAX_VALUE - vm.step );
+    for(;;)
+    {
+      if( vm.step >= maxSteps )
+        throw new Exceeded( vm, "instructions", maxSteps );
+      if( millis() > maxMillis )
+        throw new Exceeded( vm, "time", maxMillis );
+
+      long slice = Math.min( Math.min( end, maxSteps ) - vm.step, sliceSteps );
+      if( slice <= 0 )
+        return false;
+      long before = vm.step;
+      if( runner.test( slice ) )
+        return true;
+      if( vm.step - before < slice )
+        return false;  // stopped early, at a debug op, say
+    }
+  }
+
+  // ms since the program first ran
+  long millis()
+  {
+    return started ? ( System.nanoTime() - startNanos ) / 1000000 : 0;
+  }
+
+  // the first address past the stack of a program with globals
+  // ending at gp
+  int stackEnd( int gp )
+  {
+    return (int) Math.min( (long) gp + maxStack, Integer.MAX_VALUE );
+  }
+
+  // the lowest hp of a heap in an address space of max cells
+  int heapFloor( int max )
+  {
+    return max - maxHeap;
+  }
+
+  // a limit reached by the program running on vm
+  static class Exceeded extends VPLException
+  {
+    private static final long serialVersionUID = 1L;
+
+    final transient VirtualMachine vm;  // (the machine isn't serializable)
+    final String limit;
+    final long allowed;
+
+    // address of the instruction that reached the limit, filled in
+    // by whatever ran it if not known when thrown
+    int ip = -1;
+
+    Exceeded( VirtualMachine vm, String limit, long allowed )
+    {
+      super( limit + " limit" );
+      this.vm = vm;  this.limit = limit;  this.allowed = allowed;
+      if( limit.equals( "instructions" ) || limit.equals( "time" ) )
+        ip = vm.ip;  // between slices
+    }
+
+    public String getMessage()
+    {
+      return limit + " limit of " + allowed + " " + unit( limit ) +
+             " reached at ip = " + ip;
+    }
+
+    // the whole story, a line for each thing, for people and
+    // scripts alike
+    String report()
+    {
+      Limits limits = vm.limits;
+      return "limit reached: " + limit + "\n" +
+             "  allowed:       " + allowed + " " + unit( limit ) + "\n" +
+             "  ip:            " + ip + "\n" +
+             "  instructions:  " + vm.step + "\n" +
+             "  time:          " + limits.millis() + " ms\n" +
+             "  stack:         " + Math.max( vm.sp - vm.gp, 0 ) + " cells\n" +
+             "  heap:          " + ( vm.max - vm.hp ) + " cells";
+    }
+
+    private static String unit( String limit )
+    {
+      if( limit.equals( "time" ) )
+        return "ms";
+      else if( limit.equals( "instructions" ) )
+        return "instructions";
+      else
+        return "cells";
+    }
+  }
+
+}// Limits
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/*  heap segment kept outside the Java heap (-offheap), so a
+    program with a big heap doesn't make the Java collector
+    copy and scan it, and, with -map file, backed by a file
+    mapped into memory, so it can be bigger than physical memory
+
+    cell k is int k & mask of chunk k >>> shift, at byte
+    4*k of the file; chunks are made as the heap grows down
+    into them, and let go once it shrinks back up past them.
+    Fresh chunks are all 0, as new expects of fresh cells.
+
+    direct memory is limited by -XX:MaxDirectMemorySize (which is
+    -Xmx unless given), a mapped file only by the disk
+
+    the machine only comes here for addresses at or above
+    heapBase, through the getFar and putFar ops decode uses
+    instead of get and put when there is an OffHeap, so the
+    default execution loop is not touched at all
+*/
+
+public class OffHeap
+{
+  // ints per chunk, so no one buffer needs more than 2^31 bytes
+  private static final int shift = 24;
+  private static final int chunk = 1 << shift;
+  private static final int mask = chunk - 1;
+
+  private IntBuffer[] chunks = new IntBuffer[0];
+  private int max;
+
+  // the mapped file, or null for direct memory
+  private final FileChannel file;
+
+  OffHeap()
+  {
+    file = null;
+  }
+
+  OffHeap( String fileName ) throws IOException
+  {
+    // the file is only scratch space, gone when the program is
+    file = FileChannel.open( Paths.get( fileName ), StandardOpenOption.CREATE,
+                             StandardOpenOption.READ, StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.DELETE_ON_CLOSE );
+  }
+
+  // forget all cells, for an address space of max cells
+  void reset( int max )
+  {
+    this.max = max;
+    chunks = new IntBuffer[ (int) ( ( (long) max + chunk - 1 ) >>> shift ) ];
+    try {
+      if( file != null )
+        file.truncate( 0 );
+    }
+    catch( IOException e )
+    {
+      throw new VPLException( "can't reuse the mapped heap: " + e.getMessage() );
+    }
+  }
+
+  // (the last chunk may go past max, so that is checked here)
+  int get( int k )
+  {
+    if( k >= max )
+      throw new ArrayIndexOutOfBoundsException( k );
+    return chunks[ k >>> shift ].get( k & mask );
+  }
+
+  void put( int k, int value )
+  {
+    if( k >= max )
+      throw new ArrayIndexOutOfBoundsException( k );
+    chunks[ k >>> shift ].put( k & mask, value );
+  }
+
+  // cells from..to-1 get 0, a piece of a chunk at a time
+  void clear( int from, int to )
+  {
+    if( to > max )
+      throw new ArrayIndexOutOfBoundsException( to );
+    int k = from;
+    while( k < to )
+    {
+      int n = Math.min( Math.min( to - k, chunk - (k & mask) ), zeros.length );
+      chunks[ k >>> shift ].put( k & mask, zeros, 0, n );
+      k += n;
+    }
+  }
+
+  private static final int[] zeros = new int[ 4096 ];
+
+  // the first cell of the chunk holding cell k, so
+  // cover( low( k ) ) makes no more chunks than cover( k )
+  static int low( int k )
+  {
+    return k & ~mask;
+  }
+
+  // make chunks for the cells from from up to the end of the
+  // address space, and let go of the ones below that
+  void cover( int from )
+  {
+    int first = from >>> shift;
+    for( int c=0; c<first; ++c )
+      chunks[c] = null;
+    for( int c=first; c<chunks.length; ++c )
+      if( chunks[c] == null )
+        chunks[c] = allocate( c );
+  }
+
+  private IntBuffer allocate( int c )
+  {
+    try {
+      ByteBuffer bytes = file == null ?
+         ByteBuffer.allocateDirect( 4*chunk ) :
+         file.map( FileChannel.MapMode.READ_WRITE, 4L*chunk*c, 4L*chunk );
+      return bytes.order( ByteOrder.nativeOrder() ).asIntBuffer();
+    }
+    catch( OutOfMemoryError e )
+    {// direct memory is limited to -Xmx unless told otherwise
+      throw new VPLException( "out of memory: can't add " + chunk +
+         " cells to the heap (try a bigger -XX:MaxDirectMemorySize, or -map)" );
+    }
+    catch( IOException e )
+    {
+      throw new VPLException( "out of memory: can't add " + chunk +
+                              " cells to the heap: " + e.getMessage() );
+    }
+  }
+
+  // copy of cells from..to-1
+  int[] copy( int from, int to )
+  {
+    int[] cells = new int[ to - from ];
+    for( int k=from; k<to; ++k )
+      cells[ k - from ] = get( k );
+    return cells;
+  }
+
+}// OffHeap
@@ -0,0 +1,306 @@
+import java.io.*;
+import java.util.*;
+
+/*  profiling mode (-profile): counts how many times each
+    instruction runs, and keeps a call tree with the number
+    of calls, instructions, and time spent in each function
+    along each path of calls
+
+    at halt it writes
+
+      fileName.prof     instructions by opcode, the hottest
+                        instructions, and the functions sorted
+                        by instructions executed in them
+      fileName.folded   one line per path of calls, like
+                          main;L2000;L2000 1234
+                        giving the instructions executed in the
+                        last function of the path, the format
+                        flame graph tools read
+
+    a function is named by its label, so "L2000" is the
+    function that starts where "1 2000" was in the program
+*/
+
+public class Profiler
+{
+  // times each pre-decoded instruction was executed, which the
+  // execution loop only updates when this is not null
+  final long[] counts;
+
+  // the call tree: node 0 is the "main" part of the program, and
+  // every other node is calls to instruction func[node] made
+  // while in node parent[node]
+  private int[] parent, func;
+  private long[] calls, selfSteps, selfNanos, totalNanos;
+  private int numNodes;
+  private HashMap<Long,Integer> children;
+
+  // the calls in progress, with entry 0 for the "main" part
+  private int[] stackNode;
+  private long[] startSteps, startNanos, childSteps, childNanos;
+  private int depth;
+
+  private final VirtualMachine vm;
+
+  // start profiling the program loaded in vm
+  public Profiler( VirtualMachine vm )
+  {
+    this.vm = vm;
+    counts = new long[ vm.numInsns+1 ];
+
+    parent = new int[64];  func = new int[64];
+    calls = new long[64];  selfSteps = new long[64];
+    selfNanos = new long[64];  totalNanos = new long[64];
+    children = new HashMap<Long,Integer>();
+    numNodes = 1;
+    parent[0] = -1;  func[0] = -1;  calls[0] = 1;
+
+    stackNode = new int[64];
+    startSteps = new long[64];  startNanos = new long[64];
+    childSteps = new long[64];  childNanos = new long[64];
+    depth = 0;
+    startNanos[0] = System.nanoTime();
+  }
+
+  // a call to the instruction target, when steps instructions
+  // have been executed
+  void enter( int target, long steps )
+  {
+    long now = System.nanoTime();
+
+    int from = stackNode[ depth ];
+    long key = ((long) from << 32) | target;
+    Integer found = children.get( key );
+    int node;
+    if( found != null )
+      node = found;
+    else
+    {
+      node = newNode( from, target );
+      children.put( key, node );
+    }
+
+    depth++;
+    if( depth == stackNode.length )
+    {
+      int size = 2*depth;
+      stackNode = Arrays.copyOf( stackNode, size );
+      startSteps = Arrays.copyOf( startSteps, size );
+      startNanos = Arrays.copyOf( startNanos, size );
+      childSteps = Arrays.copyOf( childSteps, size );
+      childNanos = Arrays.copyOf( childNanos, size );
+    }
+    stackNode[ depth ] = node;
+    startSteps[ depth ] = steps;  startNanos[ depth ] = now;
+    childSteps[ depth ] = 0;  childNanos[ depth ] = 0;
+  }
+
+  // return from the most recent call
+  void exit( long steps )
+  {
+    if( depth == 0 )
+      return;  // "main" returning, nothing to undo
+
+    long now = System.nanoTime();
+    long s = steps - startSteps[ depth ];
+    long t = now - startNanos[ depth ];
+
+    int node = stackNode[ depth ];
+    calls[ node ]++;
+    selfSteps[ node ] += s - childSteps[ depth ];
+    selfNanos[ node ] += t - childNanos[ depth ];
+    totalNanos[ node ] += t;
+
+    depth--;
+    childSteps[ depth ] += s;
+    childNanos[ depth ] += t;
+  }
+
+  private int newNode( int from, int target )
+  {
+    if( numNodes == parent.length )
+    {
+      int size = 2*numNodes;
+      parent = Arrays.copyOf( parent, size );
+      func = Arrays.copyOf( func, size );
+      calls = Arrays.copyOf( calls, size );
+      selfSteps = Arrays.copyOf( selfSteps, size );
+      selfNanos = Arrays.copyOf( selfNanos, size );
+      totalNanos = Arrays.copyOf( totalNanos, size );
+    }
+    parent[ numNodes ] = from;  func[ numNodes ] = target;
+    numNodes++;
+    return numNodes-1;
+  }
+
+  // finish any calls still in progress at halt and write the reports
+  void report( long steps ) throws IOException
+  {
+    while( depth > 0 )
+    {
+      calls[ stackNode[ depth ] ]--;  // not a completed call
+      exit( steps );
+    }
+    long t = System.nanoTime() - startNanos[0];
+    selfSteps[0] = steps - childSteps[0];
+    selfNanos[0] = t - childNanos[0];
+    totalNanos[0] = t;
+
+    String fileName = vm.fileName;
+    writeReport( fileName + ".prof", steps );
+    writeFolded( fileName + ".folded" );
+
+    VPLLog.println( VPLLog.summary, "profile written to " + fileName +
+                    ".prof and " + fileName + ".folded" );
+  }
+
+  // name of the function starting at instruction n
+  private String name( int n )
+  {
+    if( n < 0 )
+      return "main";
+
+    int address = vm.dAddr[n];
+    for( int label : vm.labels.keys() )
+      if( vm.labels.get( label ) == address )
+        return "L" + label;
+    return "@" + address;
+  }
+
+  private void writeReport( String reportName, long steps )
+                                                    throws IOException
+  {
+    PrintWriter out = new PrintWriter( new BufferedWriter(
+                                          new FileWriter( reportName ) ) );
+    int numInsns = vm.numInsns;
+
+    out.println("profile of " + vm.fileName + ": " + steps +
+                " instructions in " + totalNanos[0]/1000000 + " ms");
+
+    // by opcode, as loaded (fused calls are counted as the
+    // instructions they stand for)
+    long[] byOp = new long[ 64 ];
+    for( int n=0; n<numInsns; ++n )
+      if( 0 <= opcode(n) && opcode(n) < byOp.length )
+        byOp[ opcode(n) ] += counts[n];
+
+    Integer[] ops = new Integer[ byOp.length ];
+    for( int k=0; k<ops.length; ++k )
+      ops[k] = k;
+    Arrays.sort( ops, (x, y) -> Long.compare( byOp[y], byOp[x] ) );
+
+    out.println();
+    out.println("instructions by opcode:");
+    for( int op : ops )
+      if( byOp[op] > 0 )
+        out.printf("  %-12s %14d %6.2f%%%n", VirtualMachine.opName( op ), byOp[op],
+                   100.0 * byOp[op] / Math.max( steps, 1 ) );
+
+    // hottest instructions, with the function each one is in
+    int[] funcOf = enclosingFunctions();
+
+    Integer[] insns = new Integer[ numInsns ];
+    for( int n=0; n<numInsns; ++n )
+      insns[n] = n;
+    Arrays.sort( insns, (x, y) -> Long.compare( counts[y], counts[x] ) );
+
+    out.println();
+    out.println("hottest instructions:");
+    out.printf("  %8s  %-12s %14s %8s  %s%n", "address", "opcode", "count",
+               "", "function");
+    for( int k=0; k<numInsns && k<30 && counts[ insns[k] ] > 0; ++k )
+    {
+      int n = insns[k];
+      out.printf("  %8d  %-12s %14d %6.2f%%  %s%n", vm.dAddr[n],
+                 VirtualMachine.opName( opcode(n) ), counts[n],
+                 100.0 * counts[n] / Math.max( steps, 1 ), name( funcOf[n] ) );
+    }
+
+    // by function, adding up all the paths that end in the function;
+    // inclusive time only counts calls not made from inside another
+    // call of the same function, so recursion isn't counted twice
+    HashMap<Integer,long[]> byFunc = new HashMap<Integer,long[]>();
+    for( int node=0; node<numNodes; ++node )
+    {
+      long[] totals = byFunc.get( func[node] );
+      if( totals == null )
+      {
+        totals = new long[4];
+        byFunc.put( func[node], totals );
+      }
+      totals[0] += calls[node];
+      totals[1] += selfSteps[node];
+      totals[2] += selfNanos[node];
+      if( ! recursive( node ) )
+        totals[3] += totalNanos[node];
+    }
+
+    ArrayList<Integer> funcs = new ArrayList<Integer>( byFunc.keySet() );
+    funcs.sort( (x, y) -> Long.compare( byFunc.get(y)[1], byFunc.get(x)[1] ) );
+
+    out.println();
+    out.println("functions:");
+    out.printf("  %-12s %12s %14s %8s %12s %12s%n", "function", "calls",
+               "self instrs", "", "self ms", "total ms");
+    for( int f : funcs )
+    {
+      long[] totals = byFunc.get(f);
+      out.printf("  %-12s %12d %14d %6.2f%% %12.3f %12.3f%n", name(f),
+                 totals[0], totals[1], 100.0 * totals[1] / Math.max( steps, 1 ),
+                 totals[2]/1e6, totals[3]/1e6 );
+    }
+
+    out.close();
+  }
+
+  // opcode of instruction n in the loaded code
+  private int opcode( int n )
+  {
+    return vm.mem[ vm.dAddr[n] ];
+  }
+
+  // whether some call above node in the tree is to the same function
+  private boolean recursive( int node )
+  {
+    for( int p=parent[node]; p>=0; p=parent[p] )
+      if( func[p] == func[node] )
+        return true;
+    return false;
+  }
+
+  // for each instruction, the call target at or before it
+  // (-1 for code before every call target)
+  private int[] enclosingFunctions()
+  {
+    boolean[] target = new boolean[ vm.numInsns ];
+    for( int n=0; n<vm.numInsns; ++n )
+      if( opcode(n) == VirtualMachine.callCode )
+        target[ vm.dA[n] ] = true;
+
+    int[] result = new int[ vm.numInsns ];
+    int current = -1;
+    for( int n=0; n<vm.numInsns; ++n )
+    {
+      if( target[n] )
+        current = n;
+      result[n] = current;
+    }
+    return result;
+  }
+
+  private void writeFolded( String foldedName ) throws IOException
+  {
+    PrintWriter out = new PrintWriter( new BufferedWriter(
+                                          new FileWriter( foldedName ) ) );
+    String[] path = new String[ numNodes ];
+    for( int node=0; node<numNodes; ++node )
+    {
+      // parents always come before their children
+      path[node] = node == 0 ? "main" : path[ parent[node] ] + ";" + name( func[node] );
+      if( selfSteps[node] > 0 )
+        out.println( path[node] + " " + selfSteps[node] );
+    }
+    out.close();
+  }
+
+}// Profiler
@@ -0,0 +1,134 @@
+import java.io.*;
+
+/*  console for programs hosted by VPLScheduler: input is handed
+    over with add, from any thread, as it arrives, and output is
+    buffered like BatchIO output until the scheduler flushes it
+    at the end of each time slice
+
+    readInt waits when there is no input yet, but the scheduler
+    never lets it get that far: while inputReady says no, the
+    machine stops at the input op, and the program is parked
+    until add or close calls the listener
+*/
+
+public class QueueIO implements VPLIO
+{
+  private int[] queue = new int[16];
+  private int head, size;
+  private boolean closed;
+  private long inputs, outputs;
+
+  private final BatchIO out;
+
+  // told whenever input arrives or the input is closed
+  private Runnable listener;
+
+  public QueueIO( OutputStream o )
+  {
+    out = new BatchIO( InputStream.nullInputStream(), o );
+  }
+
+  void setListener( Runnable listener )
+  {
+    this.listener = listener;
+  }
+
+  // hand the program another integer of input
+  public void add( int value )
+  {
+    synchronized( this )
+    {
+      if( closed )
+        throw new IllegalStateException( "input is closed" );
+      if( size == queue.length )
+      {
+        int[] bigger = new int[ 2*size ];
+        for( int k=0; k<size; ++k )
+          bigger[k] = queue[ (head + k) % size ];
+        queue = bigger;  head = 0;
+      }
+      queue[ (head + size) % queue.length ] = value;
+      size++;
+      notifyAll();
+    }
+    tell();
+  }
+
+  // there will be no more input, so a program that asks for more
+  // gets "ran out of input"
+  public void close()
+  {
+    synchronized( this )
+    {
+      closed = true;
+      notifyAll();
+    }
+    tell();
+  }
+
+  private void tell()
+  {
+    Runnable l = listener;
+    if( l != null )
+      l.run();
+  }
+
+  public synchronized boolean inputReady()
+  {
+    return size > 0 || closed;
+  }
+
+  public int readInt()
+  {
+    out.symbol( '?' );  out.symbol( ' ' );
+    return nextInt();
+  }
+
+  private synchronized int nextInt()
+  {
+    while( size == 0 && ! closed )
+    {
+      try {
+        wait();
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+        throw new VPLException("interrupted while waiting for input");
+      }
+    }
+    if( size == 0 )
+      throw new VPLException("ran out of input");
+
+    int value = queue[ head ];
+    head = (head + 1) % queue.length;
+    size--;
+    inputs++;
+    return value;
+  }
+
+  public synchronized long inputsRead()
+  {  return inputs;  }
+
+  public void skipInputs( long count )
+  {
+    for( long k=0; k<count; ++k )
+      nextInt();
+  }
+
+  public void writeInt( int value )
+  {  outputs++;  out.writeInt( value );  }
+
+  public void newline()
+  {  outputs++;  out.newline();  }
+
+  public void symbol( int c )
+  {  outputs++;  out.symbol( c );  }
+
+  public long outputsWritten()
+  {  return outputs;  }
+
+  public void flush()
+  {  out.flush();  }
+
+}// QueueIO
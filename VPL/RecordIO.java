@@ -0,0 +1,84 @@
+import java.io.*;
+
+/*  console that records (-record file): passes everything on to
+    another console, keeping each integer the program reads, and
+    save writes them all to the trace file that ReplayIO reads
+
+    the trace is the magic number, the count, and the integers,
+    each as a zigzag varint, so small numbers of either sign take
+    one byte
+*/
+
+public class RecordIO implements VPLIO
+{
+  private final VPLIO io;
+  private final String fileName;
+
+  private int[] values = new int[256];
+  private int count;
+
+  public RecordIO( VPLIO io, String fileName )
+  {
+    this.io = io;
+    this.fileName = fileName;
+  }
+
+  public int readInt()
+  {
+    int value = io.readInt();
+    if( count == values.length )
+      values = java.util.Arrays.copyOf( values, 2*count );
+    values[ count++ ] = value;
+    return value;
+  }
+
+  // write the trace of everything read so far
+  void save() throws IOException
+  {
+    try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                                        new FileOutputStream( fileName ) ) ) )
+    {
+      out.writeInt( ReplayIO.magic );
+      writeVarint( out, count );
+      for( int k=0; k<count; ++k )
+        writeVarint( out, (values[k] << 1) ^ (values[k] >> 31) );
+    }
+    VPLLog.println( VPLLog.summary, "recorded " + count + " inputs in " + fileName );
+  }
+
+  // 7 bits at a time, low bits first, high bit set on all but the last
+  private static void writeVarint( DataOutputStream out, int bits ) throws IOException
+  {
+    while( (bits & ~0x7f) != 0 )
+    {
+      out.writeByte( (bits & 0x7f) | 0x80 );
+      bits >>>= 7;
+    }
+    out.writeByte( bits );
+  }
+
+  public boolean inputReady()
+  {  return io.inputReady();  }
+
+  public long inputsRead()
+  {  return io.inputsRead();  }
+
+  public void skipInputs( long n )
+  {  io.skipInputs( n );  }
+
+  public long outputsWritten()
+  {  return io.outputsWritten();  }
+
+  public void writeInt( int value )
+  {  io.writeInt( value );  }
+
+  public void newline()
+  {  io.newline();  }
+
+  public void symbol( int c )
+  {  io.symbol( c );  }
+
+  public void flush()
+  {  io.flush();  }
+
+}// RecordIO
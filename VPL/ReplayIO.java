@@ -0,0 +1,112 @@
+import java.io.*;
+import java.nio.file.*;
+
+/*  console that replays (-replay file): the integers recorded by
+    RecordIO are decoded into an array before the program starts,
+    and each input op just takes the next one, with no waiting and
+    no parsing, so timing runs of a program that reads input are
+    the same every time
+
+    output goes to a stream through a BatchIO, with the "? "
+    prompts written as usual, so a replay produces exactly the
+    output of the recorded run
+*/
+
+public class ReplayIO implements VPLIO
+{
+  static final int magic = 0x56504c54;  // "VPLT"
+
+  private final int[] values;
+  private int next;
+  private long outputs;
+
+  private final BatchIO out;
+
+  public ReplayIO( String fileName, OutputStream o ) throws IOException
+  {
+    this( read( fileName ), o );
+  }
+
+  // replay values, which are not copied
+  public ReplayIO( int[] values, OutputStream o )
+  {
+    this.values = values;
+    out = new BatchIO( InputStream.nullInputStream(), o );
+  }
+
+  // the integers in the trace in fileName
+  static int[] read( String fileName ) throws IOException
+  {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes( Paths.get( fileName ) );
+    }
+    catch( NoSuchFileException e )
+    {
+      throw new VPLException( "can't find input trace " + fileName );
+    }
+    int[] at = { 4 };
+    if( bytes.length < 4 || ( (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 |
+                              (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff) ) != magic )
+      throw new VPLException( fileName + " is not a VPL input trace" );
+
+    int count = readVarint( bytes, at, fileName );
+    if( count < 0 || count > bytes.length - at[0] )
+      throw new VPLException( fileName + " is not a whole input trace" );
+    int[] values = new int[ count ];
+    for( int k=0; k<count; ++k )
+    {
+      int bits = readVarint( bytes, at, fileName );
+      values[k] = (bits >>> 1) ^ -(bits & 1);
+    }
+    return values;
+  }
+
+  private static int readVarint( byte[] bytes, int[] at, String fileName )
+  {
+    int bits = 0;
+    for( int shift=0; shift<35; shift += 7 )
+    {
+      if( at[0] == bytes.length )
+        break;
+      int b = bytes[ at[0]++ ];
+      bits |= (b & 0x7f) << shift;
+      if( (b & 0x80) == 0 )
+        return bits;
+    }
+    throw new VPLException( fileName + " is not a whole input trace" );
+  }
+
+  public int readInt()
+  {
+    out.symbol( '?' );  out.symbol( ' ' );
+    if( next == values.length )
+      throw new VPLException("ran out of input");
+    return values[ next++ ];
+  }
+
+  public boolean inputReady()
+  {  return true;  }
+
+  public long inputsRead()
+  {  return next;  }
+
+  public void skipInputs( long count )
+  {  next = (int) Math.min( values.length, next + count );  }
+
+  public void writeInt( int value )
+  {  outputs++;  out.writeInt( value );  }
+
+  public void newline()
+  {  outputs++;  out.newline();  }
+
+  public void symbol( int c )
+  {  outputs++;  out.symbol( c );  }
+
+  public long outputsWritten()
+  {  return outputs;  }
+
+  public void flush()
+  {  out.flush();  }
+
+}// ReplayIO
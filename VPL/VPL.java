@@ -1,307 +1,232 @@
 import java.io.*;
-import java.util.*;
+
+/*  command line front end: runs one VPL program on a
+    VirtualMachine, with its input and output on the console
+    (see VPLBatch for running many programs at once)
+*/
 
 public class VPL
 {
-  static String fileName;
-  static Scanner keys;
-
-  static int max;
-  static int[] mem;
-  static int ip, bp, sp, rv, hp, numPassed, gp;
-  static int step;
-
   public static void main(String[] args) throws Exception {
 
-    keys = new Scanner( System.in );
-
-    if( args.length != 2 ) {
-      System.out.println("Usage: java VPL <vpl program> <memory size>" );
-      System.exit(1);
-    }
-
-    fileName = args[0];
-
-    max = Integer.parseInt( args[1] );
-    mem = new int[max];
-
-    // load the program into the front part of
-    // memory
-    Scanner input = new Scanner( new File( fileName ) );
-    String line;
-    StringTokenizer st;
-    int opcode;
-
-    ArrayList<IntPair> labels, holes;
-    labels = new ArrayList<IntPair>();
-    holes = new ArrayList<IntPair>();
-    int label;
-
-    // load the code
-
-    int k=0;
-    while ( input.hasNextLine() ) {
-      line = input.nextLine();
-      System.out.println("parsing line [" + line + "]");
-      if( line != null )
-      {// extract any tokens
-        st = new StringTokenizer( line );
-        if( st.countTokens() > 0 )
-        {// have a token, so must be an instruction (as opposed to empty line)
-
-          opcode = Integer.parseInt(st.nextToken());
-
-          // load the instruction into memory:
-
-          if( opcode == labelCode )
-          {// note index that comes where label would go
-            label = Integer.parseInt(st.nextToken());
-            labels.add( new IntPair( label, k ) );
-          }
-          else if( opcode == noopCode ){
-          }
-          else
-          {// opcode actually gets stored
-            mem[k] = opcode;  k++;
- 
-            if( opcode == callCode || opcode == jumpCode ||
-                opcode == condJumpCode )
-            {// note the hole immediately after the opcode to be filled in later
-              label = Integer.parseInt( st.nextToken() );
-              mem[k] = label;  holes.add( new IntPair( k, label ) );
-              ++k;
-            }
-
-            // load correct number of arguments (following label, if any):
-            for( int j=0; j<numArgs(opcode); ++j )
-            {
-              mem[k] = Integer.parseInt(st.nextToken());
-              ++k;
-            }
-
-          }// not a label
-
-        }// have a token, so must be an instruction
-      }// have a line
-    }// loop to load code
-    
-    //System.out.println("after first scan:");
-    //showMem( 0, k-1 );
-
-    // fill in all the holes:
-    int index;
-    for( int m=0; m<holes.size(); ++m )
+    // options come before the program and memory size
+    boolean batch = false, profile = false, compile = false, gc = true;
+    boolean debug = false, metrics = false, coverage = false;
+    String checkpointFile = null, resumeFile = null;
+    String recordFile = null, replayFile = null;
+    String mapFile = null;
+    boolean offHeap = false;
+    long every = Checkpoint.defaultEvery;
+    int workers = 0, stack = VirtualMachine.defaultSpawnStack;
+    Limits limits = new Limits();
+    boolean limited = false;
+    int first = 0;
+    while( first < args.length && args[first].startsWith( "-" ) )
     {
-      label = holes.get(m).second;
-      index = -1;
-      for( int n=0; n<labels.size(); ++n )
-        if( labels.get(n).first == label )
-          index = labels.get(n).second;
-      mem[ holes.get(m).first ] = index;
-    }
-
-    System.out.println("after replacing labels:");
-    showMem( 0, k-1 );
-
-    // initialize registers:
-    bp = k;  sp = k+2;  ip = 0;  rv = -1;  hp = max;
-    numPassed = 0;
-    
-    int codeEnd = bp-1;
-
-    System.out.println("Code is " );
-    showMem( 0, codeEnd );
-
-    gp = codeEnd + 1;
-
-    // start execution:
-    boolean done = false;
-    int op, a=0, b=0, c=0;
-    int actualNumArgs;
-
-    int step = 0;
-
-    int oldIp = 0;
-
-    // repeatedly execute a single operation
-    // *****************************************************************
-
-    do {
-
-/*    // show details of current step
-      System.out.println("--------------------------");
-      System.out.println("Step of execution with IP = " + ip + " opcode: " +
-          mem[ip] + 
-         " bp = " + bp + " sp = " + sp + " hp = " + hp + " rv = " + rv );
-      System.out.println(" chunk of code: " +  mem[ip] + " " +
-                            mem[ip+1] + " " + mem[ip+2] + " " + mem[ip+3] );
-      System.out.println("--------------------------");
-      System.out.println( " memory from " + (codeEnd+1) + " up: " );
-      showMem( codeEnd+1, sp+3 );
-      System.out.println("hit <enter> to go on" );
-      keys.nextLine();
-*/
-
-      oldIp = ip;
-
-      op = mem[ ip ];  ip++;
-      // extract the args into a, b, c for convenience:
-      a = -1;  b = -2;  c = -3;
-
-      // numArgs is wrong for these guys, need one more!
-      if( op == callCode || op == jumpCode ||
-                op == condJumpCode )
+      if( args[first].equals( "-checkpoint" ) && first+1 < args.length )
+        checkpointFile = args[++first];
+      else if( args[first].equals( "-every" ) && first+1 < args.length )
+        every = Long.parseLong( args[++first] );
+      else if( args[first].equals( "-resume" ) && first+1 < args.length )
+        resumeFile = args[++first];
+      else if( args[first].equals( "-record" ) && first+1 < args.length )
+        recordFile = args[++first];
+      else if( args[first].equals( "-replay" ) && first+1 < args.length )
+        replayFile = args[++first];
+      else if( args[first].equals( "-offheap" ) )
+        offHeap = true;
+      else if( args[first].equals( "-map" ) && first+1 < args.length )
+        mapFile = args[++first];
+      else if( args[first].equals( "-workers" ) && first+1 < args.length )
+        workers = Integer.parseInt( args[++first] );
+      else if( args[first].equals( "-stack" ) && first+1 < args.length )
+        stack = Integer.parseInt( args[++first] );
+      else if( args[first].equals( "-metrics" ) )
+        metrics = true;
+      else if( args[first].equals( "-debug" ) )
+        debug = true;
+      else if( args[first].equals( "-batch" ) )
+        batch = true;
+      else if( args[first].equals( "-nogc" ) )
+        gc = false;
+      else if( args[first].equals( "-profile" ) )
+        profile = true;
+      else if( args[first].equals( "-compile" ) )
+        compile = true;
+      else if( args[first].equals( "-coverage" ) )
+        coverage = true;
+      else if( limits.option( args, first ) )
       {
-        actualNumArgs = numArgs( op ) + 1;
+        limited = true;  first++;
       }
+      else if( VPLLog.parseLevel( args[first] ) >= 0 )
+        VPLLog.level = VPLLog.parseLevel( args[first] );
       else
-        actualNumArgs = numArgs( op );
-
-      if( actualNumArgs == 1 )
-      {  a = mem[ ip ];  ip++;  }
-      else if( actualNumArgs == 2 )
-      {  a = mem[ ip ];  ip++;  b = mem[ ip ]; ip++; }
-      else if( actualNumArgs == 3 )
-      {  a = mem[ ip ];  ip++;  b = mem[ ip ]; ip++; c = mem[ ip ]; ip++; }
- 
-      // implement all operations here:
-      // ********************************************
-
-      // put your work right here!
+        usage();
+      first++;
+    }
 
-      if ( op == oppCode ) {
-         mem[ bp+2 + a ] = - mem[ bp+2 + b ];
+    OutputStream stdout = new FileOutputStream( FileDescriptor.out );
+    VPLIO io;
+    // the debugger shares the keyboard with the program
+    if( debug && ( recordFile != null || replayFile != null ) )
+      usage();
+    if( workers < 0 || stack < 1 || ! limits.valid() )
+      usage();
+    if( replayFile != null )
+    {
+      try {
+        io = new ReplayIO( replayFile, stdout );
       }
-
-
-      else
+      catch( VPLException e )
       {
-        System.out.println("Fatal error: unknown opcode [" + op + "]" );
+        VPLLog.error( e.getMessage() );
         System.exit(1);
+        return;
+      }
+    }
+    else if( batch && ! debug )
+      io = new BatchIO( System.in, stdout );
+    else
+      io = new ConsoleIO( System.in, stdout );
+    RecordIO recorder = null;
+    if( recordFile != null )
+      io = recorder = new RecordIO( io, recordFile );
+
+    // a resumed program comes with its memory size
+    if( resumeFile != null ? args.length != first :
+        args.length - first < 1 || args.length - first > 2 )
+      usage();
+
+    // memory size is just a limit now, memory grows as needed
+    int limit = VirtualMachine.defaultMax;
+    if( args.length - first == 2 )
+      limit = Integer.parseInt( args[first+1] );
+
+    VirtualMachine vm = new VirtualMachine( io );
+    vm.collector.collecting = gc;
+    vm.fusing = ! debug && ! coverage;
+    if( workers > 0 )
+      vm.workerThreads = workers;
+    vm.spawnStack = stack;
+    if( limited )
+      vm.limits = limits;
+    if( mapFile != null )
+      vm.offHeap = new OffHeap( mapFile );
+    else if( offHeap )
+      vm.offHeap = new OffHeap();
+
+    try {
+      long startTime = System.nanoTime();
+
+      if( resumeFile != null )
+        Checkpoint.resume( vm, resumeFile );
+      else
+        vm.load( args[first], limit );
+      long startStep = vm.step;
+
+      long loadTime = System.nanoTime();
+      VPLLog.println( VPLLog.summary, "loaded " + vm.fileName + ": " + vm.gp +
+         " cells, " + vm.numInsns + " instructions, " + vm.labels.size() +
+         " labels in " + (loadTime-startTime)/1000000 + " ms" );
+      if( resumeFile != null )
+        VPLLog.println( VPLLog.summary, "resuming from " + resumeFile +
+           " after " + startStep + " instructions" );
+      VPLLog.flush();
+
+      if( profile )
+        vm.profiler = new Profiler( vm );
+      Coverage covering = coverage ? new Coverage( vm ) : null;
+
+      // only the interpreter keeps a profile or coverage, or can be debugged
+      VPLCompiler compiler = null;
+      if( compile && ! profile && ! coverage && ! debug )
+      {
+        long compileStart = System.nanoTime();
+        compiler = new VPLCompiler( vm );
+        if( ! compiler.compile() )
+          compiler = null;
+        loadTime = System.nanoTime();
+        if( compiler != null )
+          VPLLog.println( VPLLog.summary, "compiled in " +
+             (loadTime-compileStart)/1000000 + " ms" );
+        VPLLog.flush();
       }
-       
-      step++;
-
-    }while( !done );
-    
-
-  }// main
-
-  // use symbolic names for all opcodes:
-
-  // op to produce comment
-  private static final int noopCode = 0;
-
-  // ops involved with registers
-  private static final int labelCode = 1;
-  private static final int callCode = 2;
-  private static final int passCode = 3;
-  private static final int allocCode = 4;
-  private static final int returnCode = 5;  // return a means "return and put
-           // copy of value stored in cell a in register rv
-  private static final int getRetvalCode = 6;//op a means "copy rv into cell a"
-  private static final int jumpCode = 7;
-  private static final int condJumpCode = 8;
-
-  // arithmetic ops
-  private static final int addCode = 9;
-  private static final int subCode = 10;
-  private static final int multCode = 11;
-  private static final int divCode = 12;
-  private static final int remCode = 13;
-  private static final int equalCode = 14;
-  private static final int notEqualCode = 15;
-  private static final int lessCode = 16;
-  private static final int lessEqualCode = 17;
-  private static final int andCode = 18;
-  private static final int orCode = 19;
-  private static final int notCode = 20;
-  private static final int oppCode = 21;
-  
-  // ops involving transfer of data
-  private static final int litCode = 22;  // litCode a b means "cell a gets b"
-  private static final int copyCode = 23;// copy a b means "cell a gets cell b"
-  private static final int getCode = 24; // op a b means "cell a gets
-                                                // contents of cell whose 
-                                                // index is stored in b"
-  private static final int putCode = 25;  // op a b means "put contents
-     // of cell b in cell whose offset is stored in cell a"
-
-  // system-level ops:
-  private static final int haltCode = 26;
-  private static final int inputCode = 27;
-  private static final int outputCode = 28;
-  private static final int newlineCode = 29;
-  private static final int symbolCode = 30;
-  private static final int newCode = 31;
-  
-  // global variable ops:
-  private static final int allocGlobalCode = 32;
-  private static final int toGlobalCode = 33;
-  private static final int fromGlobalCode = 34;
-
-  // debug ops:
-  private static final int debugCode = 35;
-
-  // return the number of arguments after the opcode,
-  // except ops that have a label return number of arguments
-  // after the label, which always comes immediately after 
-  // the opcode
-  private static int numArgs( int opcode )
-  {
-    // highlight specially behaving operations
-    if( opcode == labelCode ) return 1;  // not used
-    else if( opcode == jumpCode ) return 0;  // jump label
-    else if( opcode == condJumpCode ) return 1;  // condJump label expr
-    else if( opcode == callCode ) return 0;  // call label
-
-    // for all other ops, lump by count:
-
-    else if( opcode==noopCode ||
-             opcode==haltCode ||
-             opcode==newlineCode ||
-             opcode==debugCode
-           ) 
-      return 0;  // op
-
-    else if( opcode==passCode || opcode==allocCode || 
-             opcode==returnCode || opcode==getRetvalCode || 
-             opcode==inputCode || 
-             opcode==outputCode || opcode==symbolCode ||
-             opcode==allocGlobalCode
-           )  
-      return 1;  // op arg1
-
-    else if( opcode==notCode || opcode==oppCode || 
-             opcode==litCode || opcode==copyCode || opcode==newCode ||
-             opcode==toGlobalCode || opcode==fromGlobalCode
 
-           ) 
-      return 2;  // op arg1 arg2
+      VPLMetrics live = null;
+      if( metrics )
+      {
+        live = new VPLMetrics( vm );
+        live.register();
+      }
 
-    else if( opcode==addCode ||  opcode==subCode || opcode==multCode ||
-             opcode==divCode ||  opcode==remCode || opcode==equalCode ||
-             opcode==notEqualCode ||  opcode==lessCode || 
-             opcode==lessEqualCode || opcode==andCode ||
-             opcode==orCode || opcode==getCode || opcode==putCode
-           )
-      return 3;
-   
-    else
-    {
-      System.out.println("Fatal error: unknown opcode [" + opcode + "]" );
+      // start execution:
+      if( debug )
+      {
+        if( ! new Debugger( vm, (ConsoleIO) io ).run() )
+        {// quit before halting
+          io.flush();
+          return;
+        }
+      }
+      else if( checkpointFile != null )
+        new Checkpoint( checkpointFile, every ).run( vm, compiler, live );
+      else if( live != null )
+        live.run( compiler );
+      else if( compiler != null )
+        compiler.run();
+      else
+        vm.run();
+
+      io.flush();
+
+      long runTime = System.nanoTime() - loadTime, steps = vm.step - startStep;
+      VPLLog.println( VPLLog.summary, "halted after " + vm.step +
+         " instructions in " + runTime/1000000 + " ms (" +
+         (runTime > 0 ? steps*1000000000L/runTime : 0) + " instructions/s)" );
+      if( vm.workers != null )
+        VPLLog.println( VPLLog.summary, vm.workers.spawned.get() +
+           " spawned calls executed " + vm.workers.instructions.get() +
+           " instructions on " + vm.workerThreads + " threads" );
+      if( vm.collector.collections > 0 )
+        VPLLog.println( VPLLog.summary, vm.collector.collections +
+           " garbage collections freed " + vm.collector.cellsFreed + " heap cells" );
+      if( profile )
+        vm.profiler.report( vm.step );
+      if( covering != null )
+        covering.report();
+      if( recorder != null )
+        recorder.save();
+      VPLLog.flush();
+    }
+    catch( Limits.Exceeded e )
+    {// stopped, not failed, so say how far it got
+      io.flush();
+      if( recorder != null )
+        recorder.save();
+      VPLLog.println( VPLLog.silent, e.report() );
+      VPLLog.flush();
+      System.exit(2);
+    }
+    catch( VPLException e )
+    {// send out whatever the program has displayed first
+      io.flush();
+      if( recorder != null )
+        recorder.save();
+      VPLLog.error( e.getMessage() );
       System.exit(1);
-      return -1;
     }
 
-  }// numArgs
+  }// main
 
-  private static void showMem( int a, int b )
+  private static void usage()
   {
-    for( int k=a; k<=b; ++k )
-    {
-      System.out.println( k + ": " + mem[k] );
-    }
-  }// showMem
+    System.out.println("Usage: java VPL [-silent|-summary|-trace] [-batch] [-nogc] [-profile] [-coverage] [-compile] [-debug] [-metrics] " +
+                       "[-offheap|-map <file>] [-record <file>|-replay <file>] " +
+                       "[-workers <n>] [-stack <cells>] " + Limits.usage + " " +
+                       "[-checkpoint <file> [-every <n>]] " +
+                       "<vpl program> [<memory size>] | -resume <file>" );
+    System.exit(1);
+  }
 
 }// VPL
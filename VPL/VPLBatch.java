@@ -0,0 +1,215 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*  batch runner: runs many VPL jobs in one JVM, each on its
+    own VirtualMachine, on a fixed pool of worker threads
+
+       java VPLBatch [options] prog1 prog2 ...
+          runs each program, with input from prog.in if there
+          is such a file (and no input otherwise)
+
+       java VPLBatch [options] -inputs prog in1 in2 ...
+          runs the one program once for each input file
+
+    the output of each job goes to a file named after the
+    program (and input), ending in ".out", and a line for each
+    job, in the order given, tells how it went.  The exit status
+    is 1 if any job failed.
+
+    options:
+       -threads n    number of workers (default: one per processor)
+       -out dir      directory for the output files (default: next
+                     to each input, or program)
+       -mem cells    address space of each machine
+       -nogc         no garbage collection of the heap
+       -maxsteps n, -maxtime ms, -maxstack cells, -maxheap cells
+                     limits on each job (see Limits); a job that
+                     reaches one is stopped and counts as failed
+       -silent       no line per job, just the total
+*/
+
+public class VPLBatch
+{
+  // one program run over one input file (or none)
+  private static class Job implements Callable<String>
+  {
+    final String program, input, output;
+    final int limit;
+    final boolean gc;
+    final Limits limits;
+    boolean failed;
+
+    Job( String program, String input, String output, int limit, boolean gc,
+         Limits limits )
+    {
+      this.program = program;  this.input = input;  this.output = output;
+      this.limit = limit;  this.gc = gc;
+      // (each job keeps its own clock)
+      this.limits = limits == null ? null : new Limits( limits );
+    }
+
+    // run the job, returning the line that says how it went
+    public String call()
+    {
+      String name = program + ( input == null ? "" : " < " + input );
+      long startTime = System.nanoTime();
+      VirtualMachine vm = null;
+
+      try( InputStream in = input == null ?
+                   new ByteArrayInputStream( new byte[0] ) :
+                   new BufferedInputStream( new FileInputStream( input ) );
+           OutputStream out = new FileOutputStream( output ) )
+      {
+        vm = new VirtualMachine( new BatchIO( in, out ) );
+        vm.collector.collecting = gc;
+        vm.limits = limits;
+        try {
+          vm.load( program, limit );
+          vm.run();
+        }
+        finally
+        {// keep whatever the program displayed before failing
+          vm.io.flush();
+        }
+      }
+      catch( Limits.Exceeded e )
+      {
+        failed = true;
+        return name + ": STOPPED after " + vm.step + " instructions: " +
+               e.getMessage();
+      }
+      catch( VPLException | IOException e )
+      {
+        failed = true;
+        return name + ": FAILED after " + ( vm == null ? 0 : vm.step ) +
+               " instructions: " + e.getMessage();
+      }
+
+      long time = System.nanoTime() - startTime;
+      return name + ": ok, " + vm.step + " instructions in " +
+             time/1000000 + " ms -> " + output;
+    }
+  }
+
+  public static void main( String[] args ) throws Exception
+  {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String outDir = null;
+    int limit = VirtualMachine.defaultMax;
+    boolean gc = true, inputs = false;
+    Limits limits = new Limits();
+    boolean limited = false;
+
+    int first = 0;
+    try {
+      while( first < args.length && args[first].startsWith( "-" ) )
+      {
+        String option = args[first];
+        if( option.equals( "-threads" ) && first+1 < args.length )
+          threads = Integer.parseInt( args[++first] );
+        else if( option.equals( "-out" ) && first+1 < args.length )
+          outDir = args[++first];
+        else if( option.equals( "-mem" ) && first+1 < args.length )
+          limit = Integer.parseInt( args[++first] );
+        else if( option.equals( "-nogc" ) )
+          gc = false;
+        else if( option.equals( "-inputs" ) )
+          inputs = true;
+        else if( limits.option( args, first ) )
+        {
+          limited = true;  first++;
+        }
+        else if( VPLLog.parseLevel( option ) >= 0 )
+          VPLLog.level = VPLLog.parseLevel( option );
+        else
+          usage();
+        first++;
+      }
+    }
+    catch( NumberFormatException e )
+    {
+      usage();
+    }
+
+    if( first == args.length || threads < 1 || ! limits.valid() ||
+        ( inputs && args.length - first < 2 ) )
+      usage();
+
+    if( outDir != null )
+      new File( outDir ).mkdirs();
+
+    if( ! limited )
+      limits = null;
+
+    ArrayList<Job> jobs = new ArrayList<Job>();
+    if( inputs )
+    {
+      String program = args[first];
+      for( int k=first+1; k<args.length; ++k )
+        jobs.add( new Job( program, args[k],
+                           outputName( outDir, program, args[k] ), limit, gc,
+                           limits ) );
+    }
+    else
+      for( int k=first; k<args.length; ++k )
+      {
+        String input = args[k] + ".in";
+        if( ! new File( input ).isFile() )
+          input = null;
+        jobs.add( new Job( args[k], input,
+                           outputName( outDir, args[k], null ), limit, gc,
+                           limits ) );
+      }
+
+    long startTime = System.nanoTime();
+
+    ExecutorService pool = Executors.newFixedThreadPool( threads );
+    List<Future<String>> results = pool.invokeAll( jobs );
+    pool.shutdown();
+
+    int failures = 0;
+    for( int k=0; k<jobs.size(); ++k )
+    {
+      String line;
+      try {
+        line = results.get(k).get();
+      }
+      catch( ExecutionException e )
+      {// not a VPL error, say a Java stack overflow in the verifier
+        jobs.get(k).failed = true;
+        line = jobs.get(k).program + ": FAILED: " + e.getCause();
+      }
+      if( jobs.get(k).failed )
+        failures++;
+      VPLLog.println( VPLLog.summary, line );
+    }
+
+    long time = System.nanoTime() - startTime;
+    VPLLog.println( VPLLog.silent, jobs.size() + " jobs, " + failures +
+       " failed, in " + time/1000000 + " ms on " + threads + " threads" );
+    VPLLog.flush();
+
+    System.exit( failures > 0 ? 1 : 0 );
+  }
+
+  // name of the output file for running program over input
+  private static String outputName( String outDir, String program, String input )
+  {
+    String base = input == null ? program : input;
+    if( input != null && outDir != null )
+      base = new File( program ).getName() + "." + new File( input ).getName();
+    if( outDir != null )
+      base = new File( outDir, new File( base ).getName() ).getPath();
+    return base + ".out";
+  }
+
+  private static void usage()
+  {
+    System.out.println("Usage: java VPLBatch [-silent|-summary] [-threads <n>] " +
+                       "[-out <dir>] [-mem <cells>] [-nogc] " + Limits.usage + " " +
+                       "<vpl program>... | -inputs <vpl program> <input file>...");
+    System.exit(1);
+  }
+
+}// VPLBatch
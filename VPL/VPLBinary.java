@@ -0,0 +1,98 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/*  binary form of a VPL program, as written by Jive
+    (fileName.vplb next to fileName.vpl)
+
+    all values are 32 bit big-endian ints:
+
+       magic         'V' 'P' 'L' 'B'
+       version       1
+       numLabels
+       codeLength    number of cells of code
+       numLabels pairs:   label  index
+       codeLength cells of code
+
+    the code is exactly what the text loader puts in mem:
+    label commands are already removed and every label
+    after a call, jump, or cond jump is already replaced
+    by the index where the label occurs, so loading is
+    just a bulk copy into mem
+*/
+
+public class VPLBinary
+{
+  public static final int magic = 0x56504C42;
+  public static final int version = 1;
+
+  private static final int headerBytes = 16;
+
+  // return whether the file starts with the binary magic number
+  public static boolean isBinary( String fileName ) throws IOException
+  {
+    try( DataInputStream in = new DataInputStream(
+                        new FileInputStream( fileName ) ) )
+    {
+      return in.readInt() == magic;
+    }
+    catch( EOFException e )
+    {
+      return false;
+    }
+  }
+
+  // map the file and copy its code into the front of the memory
+  // of vm, putting each label in its labels, and return the number
+  // of cells of code
+  public static int load( String fileName, VirtualMachine vm )
+                                                         throws IOException
+  {
+    try( FileChannel channel = FileChannel.open( Paths.get( fileName ),
+                                                 StandardOpenOption.READ ) )
+    {
+      long size = channel.size();
+      if( size < headerBytes )
+        error( fileName + " is too short to be a binary VPL program" );
+
+      MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY,
+                                          0, size );
+      IntBuffer ints = buf.order( ByteOrder.BIG_ENDIAN ).asIntBuffer();
+
+      if( ints.get() != magic )
+        error( fileName + " is not a binary VPL program" );
+      int v = ints.get();
+      if( v != version )
+        error( fileName + " has unsupported version " + v );
+
+      int numLabels = ints.get();
+      int codeLength = ints.get();
+
+      if( numLabels < 0 || codeLength < 0 ||
+          size != headerBytes + 8L*numLabels + 4L*codeLength )
+        error( fileName + " has a damaged header" );
+
+      if( codeLength > vm.mem.length )
+        vm.growMem( codeLength );
+
+      for( int k=0; k<numLabels; ++k )
+      {
+        int label = ints.get();
+        int index = ints.get();
+        if( vm.labels.put( label, index ) >= 0 )
+          error( "label [" + label + "] defined twice in " + fileName );
+      }
+
+      ints.get( vm.mem, 0, codeLength );
+
+      return codeLength;
+    }
+  }
+
+  private static void error( String message )
+  {
+    throw new VPLException( message );
+  }
+
+}// VPLBinary
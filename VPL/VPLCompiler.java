@@ -0,0 +1,563 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.URI;
+import java.util.*;
+import javax.tools.*;
+
+/*  compiled tier (-compile): after loading, each function of
+    the program (the code from one call target up to the next,
+    with the code before the first call target as "main") is
+    translated to a Java method, and all the methods are
+    compiled with the system Java compiler into one class,
+    defined as a hidden class next to VirtualMachine
+
+    in each method the registers are locals, frame cells are
+    mem[bp+constant], and the code is a loop around a switch
+    with a case for every instruction that can be jumped or
+    returned to, so jumps, calls, and returns that stay in
+    the function are just branches back to the switch.  The
+    method returns to the driver loop when control leaves
+    the function.  Anywhere else (a checkpoint can be taken in
+    the middle of a block) the driver loop interprets up to the
+    start of a block.  Self tail calls reuse the frame, like the
+    tailCallCode of the interpreter.  The methods work on the
+    machine passed to them, so the compiled code can be used by
+    any machine that has loaded the same program (and keeps its
+    heap the same way, in an array or in an OffHeap).  A
+    program that spawns calls is always interpreted.
+
+    memory, the heap, and the console are used exactly as the
+    interpreter uses them, so a compiled program gives the same
+    output and the same instruction count.  When there is no
+    Java compiler (a runtime without the jdk.compiler module) or
+    the generated code doesn't compile (say, a function too big
+    for one method) the program is interpreted instead.
+*/
+
+public class VPLCompiler
+{
+  // the compiled program: run executes on vm from instruction pc
+  // until control leaves the function that pc is in, and returns
+  // the index of the instruction to go on with
+  interface Code
+  {
+    int run( VirtualMachine vm, int pc );
+  }
+
+  private final VirtualMachine vm;
+
+  Code code;
+
+  // function each instruction is in, and the first instruction
+  // of each function (with numInsns at the end)
+  private int[] funcOf;
+  private int[] start;
+  private int numFuncs;
+
+  // whether the compiled code has a case for each instruction,
+  // so it can start there
+  private boolean[] entry;
+
+  private static final String className = "VPLGenerated";
+
+  public VPLCompiler( VirtualMachine vm )
+  {
+    this.vm = vm;
+  }
+
+  // compile the program loaded in vm, returning whether that worked
+  boolean compile()
+  {
+    code = null;
+    int numInsns = vm.numInsns;
+
+    // spawned calls run on machines of their own, which interpret
+    for( int n=0; n<numInsns; ++n )
+      if( VirtualMachine.spawnCode <= opcode(n) &&
+          opcode(n) <= VirtualMachine.fetchAddCode )
+      {
+        VPLLog.println( VPLLog.summary, "spawns calls, interpreting" );
+        return false;
+      }
+
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if( javac == null )
+    {
+      VPLLog.println( VPLLog.summary, "no Java compiler available, interpreting" );
+      return false;
+    }
+
+    findFunctions();
+    entry = new boolean[ numInsns+1 ];
+
+    StringBuilder source = new StringBuilder();
+    source.append( "public final class " + className +
+                   " implements VPLCompiler.Code\n{\n" );
+    source.append( "  private final int[] funcOf;\n\n" );
+    source.append( "  public " + className + "( int[] funcOf )\n  {\n" );
+    source.append( "    this.funcOf = funcOf;\n  }\n\n" );
+    source.append( "  public int run( VirtualMachine vm, int pc )\n  {\n" );
+    source.append( "    switch( funcOf[ pc ] )\n    {\n" );
+    for( int f=0; f<numFuncs; ++f )
+      source.append( "      case " + f + ": return f" + f + "( vm, pc );\n" );
+    source.append( "      default: return pc;\n    }\n  }\n" );
+    for( int f=0; f<numFuncs; ++f )
+      function( source, f );
+    source.append( "}\n" );
+
+    if( VPLLog.on( VPLLog.trace ) )
+      VPLLog.println( VPLLog.trace, "compiled code:\n" + source );
+
+    byte[] bytes = javac( javac, source.toString() );
+    if( bytes == null )
+      return false;
+
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup()
+                                       .defineHiddenClass( bytes, true );
+      code = (Code) lookup.findConstructor( lookup.lookupClass(),
+                 MethodType.methodType( void.class, int[].class ) ).invoke( funcOf );
+    }
+    catch( Throwable e )
+    {
+      VPLLog.println( VPLLog.summary, "could not define compiled code (" + e +
+                      "), interpreting" );
+      return false;
+    }
+
+    return true;
+  }
+
+  // execute the compiled program on vm starting with the
+  // instruction at ip
+  void run()
+  {
+    run( Long.MAX_VALUE );
+  }
+
+  // execute from ip until halt or until at least count more
+  // instructions have been executed, returning whether the
+  // program halted (or, if vm.stopAtDebug is set, just after a
+  // debug op); the count is checked at calls, returns, and jumps
+  // back, so the program can go a little past it
+  boolean run( long count )
+  {
+    if( vm.limits != null )
+      return vm.limits.run( vm, count, this::runSlice );
+    return runSlice( count );
+  }
+
+  // run( count ), with no limits to look at (Limits calls this
+  // a slice at a time)
+  private boolean runSlice( long count )
+  {
+    vm.halted = false;
+    vm.stopStep = vm.step + Math.min( count, Long.MAX_VALUE - vm.step );
+    int pc = vm.insnAt[ vm.ip ];
+    try {
+      while( ! vm.halted && vm.step < vm.stopStep )
+      {
+        if( pc == vm.numInsns )
+          vm.fatal("unknown opcode [-1] at ip = " + vm.dAddr[ pc ] );
+        else if( pc < 0 || pc > vm.numInsns )
+          throw new ArrayIndexOutOfBoundsException( pc );
+        else if( ! entry[ pc ] )
+        {// the middle of a block, where a checkpoint can leave off, so
+         // interpret up to the start of one
+          vm.ip = vm.dAddr[ pc ];
+          vm.execute( 1 );
+          pc = vm.insnAt[ vm.ip ];
+        }
+        else
+          pc = code.run( vm, pc );
+      }
+    }
+    catch( Limits.Exceeded e )
+    {
+      if( e.ip < 0 )
+        e.ip = vm.ip;
+      throw e;
+    }
+    catch( ArithmeticException e )
+    {
+      vm.fatal("division by zero at ip = " + vm.ip );
+    }
+    catch( ArrayIndexOutOfBoundsException e )
+    {
+      vm.fatal("memory access out of range at ip = " + vm.ip +
+            " (bp = " + vm.bp + ", sp = " + vm.sp + ", hp = " + vm.hp + ")" );
+    }
+    vm.ip = vm.dAddr[ pc ];
+    return vm.halted;
+  }
+
+  // split the code into functions at the call targets
+  private void findFunctions()
+  {
+    int numInsns = vm.numInsns;
+    int[] mem = vm.mem;
+
+    boolean[] isTarget = new boolean[ numInsns+1 ];
+    isTarget[0] = true;
+    for( int n=0; n<numInsns; ++n )
+      if( opcode(n) == VirtualMachine.callCode )
+        isTarget[ vm.insnAt[ mem[ vm.dAddr[n]+1 ] ] ] = true;
+
+    start = new int[ numInsns+2 ];
+    funcOf = new int[ numInsns+1 ];
+    numFuncs = 0;
+    for( int n=0; n<numInsns; ++n )
+    {
+      if( isTarget[n] )
+      {
+        start[ numFuncs ] = n;  numFuncs++;
+      }
+      funcOf[n] = numFuncs-1;
+    }
+    start[ numFuncs ] = numInsns;
+    funcOf[ numInsns ] = -1;
+  }
+
+  // opcode of instruction n as loaded
+  private int opcode( int n )
+  {
+    return vm.mem[ vm.dAddr[n] ];
+  }
+
+  // the frame cell with the given offset in the generated code
+  private static String cell( int offset )
+  {
+    return "mem[ bp + " + (2 + offset) + " ]";
+  }
+
+  // code that reloads the segments, for after memory may have grown
+  private static final String reload =
+      "mem = vm.mem;  heap = vm.heap;  heapBase = vm.heapBase;  " +
+      "stackEnd = vm.stackEnd();";
+
+  // add method f<f> to source, running function f from instruction pc
+  private void function( StringBuilder source, int f )
+  {
+    int[] mem = vm.mem;
+    int lo = start[f], hi = start[f+1];
+
+    // an instruction starts a case if it can be jumped or returned
+    // to, or follows an instruction that always leaves or might
+    // leave, so every case runs straight through
+    boolean[] leader = new boolean[ hi - lo + 1 ];
+    leader[0] = true;
+    for( int n=lo; n<hi; ++n )
+    {
+      int op = opcode(n), k = vm.dAddr[n];
+      if( op == VirtualMachine.callCode || op == VirtualMachine.returnCode ||
+          op == VirtualMachine.jumpCode || op == VirtualMachine.condJumpCode ||
+          op == VirtualMachine.haltCode || op == VirtualMachine.debugCode )
+        leader[ n+1 - lo ] = true;
+      if( op == VirtualMachine.jumpCode || op == VirtualMachine.condJumpCode )
+      {
+        int t = vm.insnAt[ mem[k+1] ];
+        if( lo <= t && t < hi )
+          leader[ t - lo ] = true;
+      }
+    }
+
+    StringBuilder s = source;
+    s.append( "\n  private static int f" + f + "( VirtualMachine vm, int pc )\n  {\n" );
+    s.append( "    int[] mem = vm.mem, heap = vm.heap;\n" );
+    s.append( "    int heapBase = vm.heapBase, stackEnd = vm.stackEnd();\n" );
+    s.append( "    final int[] insnAt = vm.insnAt;\n" );
+    s.append( "    final int gp = vm.gp;\n" );
+    s.append( "    final VPLIO io = vm.io;\n" );
+    s.append( "    int bp = vm.bp, sp = vm.sp, rv = vm.rv, numPassed = vm.numPassed;\n" );
+    s.append( "    long steps = 0, budget = vm.stopStep - vm.step;\n" );
+    s.append( "    int at = vm.ip;\n" );
+    s.append( "    try {\n" );
+    s.append( "    for(;;)\n" );
+    s.append( "      switch( pc )\n      {\n" );
+
+    // whether the code so far can fall through to the next instruction
+    boolean open = false;
+
+    for( int n=lo; n<hi; ++n )
+    {
+      if( leader[ n - lo ] )
+      {
+        int length = 1;
+        while( n + length < hi && ! leader[ n + length - lo ] )
+          length++;
+        s.append( "        case " + n + ":\n" );
+        entry[n] = true;
+        s.append( "          steps += " + length + ";\n" );
+      }
+
+      int k = vm.dAddr[n];
+      s.append( "          at = " + k + ";\n" );
+      open = instruction( s, n, k, mem[k], lo, hi );
+    }
+
+    if( open )
+    {// the verifier only lets this happen right after a call
+      s.append( "          vm.fatal(\"ran off the end of the function holding ip = " +
+                vm.dAddr[hi-1] + "\");\n" );
+      s.append( "          return " + hi + ";\n" );
+    }
+    s.append( "        default:\n          return pc;\n      }\n" );
+    s.append( "    }\n    finally\n    {\n" );
+    s.append( "      vm.ip = at;  vm.bp = bp;  vm.sp = sp;\n" );
+    s.append( "      vm.rv = rv;  vm.numPassed = numPassed;\n" );
+    s.append( "      vm.step += steps;\n" );
+    s.append( "    }\n  }\n" );
+  }
+
+  // code that goes on at instruction t, from instruction n of
+  // function lo..hi-1; going back (the only way to loop without
+  // leaving the method) returns to the driver once the steps
+  // allowed by vm.stopStep are used up
+  private static String go( int n, int t, int lo, int hi )
+  {
+    if( lo <= t && t <= n )
+      return "if( steps >= budget ) return " + t + ";  pc = " + t + "; continue;";
+    else if( lo <= t && t < hi )
+      return "pc = " + t + "; continue;";
+    else
+      return "return " + t + ";";
+  }
+
+  // add the code for instruction n, with opcode op at address k,
+  // returning whether it can fall through to the next instruction
+  private boolean instruction( StringBuilder s, int n, int k, int op,
+                                      int lo, int hi )
+  {
+    int[] mem = vm.mem;
+    String a = op == VirtualMachine.jumpCode || op == VirtualMachine.callCode ? "" :
+               k+1 < mem.length ? cell( mem[k+1] ) : "";
+    String b = k+2 < mem.length ? cell( mem[k+2] ) : "";
+    String c = k+3 < mem.length ? cell( mem[k+3] ) : "";
+    String is = "          ";
+
+    switch( op )
+    {
+      case VirtualMachine.callCode:
+      {
+        int t = vm.insnAt[ mem[k+1] ];
+        if( t == lo && n+2 < hi && opcode(n+1) == VirtualMachine.getRetvalCode &&
+            opcode(n+2) == VirtualMachine.returnCode &&
+            mem[ vm.dAddr[n+1]+1 ] == mem[ vm.dAddr[n+2]+1 ] )
+        {// self tail call: move the passed cells down into this frame,
+         // counting the getRetval and return it would have done
+          s.append( is + "System.arraycopy( mem, sp + 2, mem, bp + 2, numPassed );\n" );
+          s.append( is + "sp = bp + 2 + numPassed;  numPassed = 0;\n" );
+          s.append( is + "steps += 2;\n" );
+          s.append( is + go( n, t, lo, hi ) + "\n" );
+          return false;
+        }
+        s.append( is + "if( sp + 2 > stackEnd ) { vm.growStack( sp + 2 ); " +
+                  reload + " }\n" );
+        s.append( is + "mem[ sp ] = " + vm.dAddr[n+1] + ";  mem[ sp+1 ] = bp;\n" );
+        s.append( is + "bp = sp;  sp = bp + 2 + numPassed;  numPassed = 0;\n" );
+        s.append( is + go( n, t, lo, hi ) + "\n" );
+        return false;
+      }
+
+      case VirtualMachine.passCode:
+        s.append( is + "if( sp + 2 + numPassed >= stackEnd ) " +
+                  "{ vm.growStack( sp + 3 + numPassed ); " + reload + " }\n" );
+        s.append( is + "mem[ sp + 2 + numPassed ] = " + a + ";  numPassed++;\n" );
+        return true;
+
+      case VirtualMachine.allocCode:
+        s.append( is + "sp += " + mem[k+1] + ";\n" );
+        s.append( is + "if( sp > stackEnd ) { vm.growStack( sp ); " + reload + " }\n" );
+        return true;
+
+      case VirtualMachine.returnCode:
+        s.append( is + "rv = " + a + ";\n" );
+        s.append( is + "pc = insnAt[ mem[ bp ] ];  sp = bp;  bp = mem[ bp+1 ];\n" );
+        s.append( is + "if( " + lo + " <= pc && pc < " + hi + " ) continue;\n" );
+        s.append( is + "return pc;\n" );
+        return false;
+
+      case VirtualMachine.getRetvalCode:
+        s.append( is + a + " = rv;\n" );
+        return true;
+
+      case VirtualMachine.jumpCode:
+        s.append( is + go( n, vm.insnAt[ mem[k+1] ], lo, hi ) + "\n" );
+        return false;
+
+      case VirtualMachine.condJumpCode:
+        s.append( is + "if( " + cell( mem[k+2] ) + " != 0 ) { " +
+                  go( n, vm.insnAt[ mem[k+1] ], lo, hi ) + " }\n" );
+        return true;
+
+      case VirtualMachine.addCode:
+        s.append( is + a + " = " + b + " + " + c + ";\n" );  return true;
+      case VirtualMachine.subCode:
+        s.append( is + a + " = " + b + " - " + c + ";\n" );  return true;
+      case VirtualMachine.multCode:
+        s.append( is + a + " = " + b + " * " + c + ";\n" );  return true;
+      case VirtualMachine.divCode:
+        s.append( is + a + " = " + b + " / " + c + ";\n" );  return true;
+      case VirtualMachine.remCode:
+        s.append( is + a + " = " + b + " % " + c + ";\n" );  return true;
+      case VirtualMachine.equalCode:
+        s.append( is + a + " = " + b + " == " + c + " ? 1 : 0;\n" );  return true;
+      case VirtualMachine.notEqualCode:
+        s.append( is + a + " = " + b + " != " + c + " ? 1 : 0;\n" );  return true;
+      case VirtualMachine.lessCode:
+        s.append( is + a + " = " + b + " < " + c + " ? 1 : 0;\n" );  return true;
+      case VirtualMachine.lessEqualCode:
+        s.append( is + a + " = " + b + " <= " + c + " ? 1 : 0;\n" );  return true;
+      case VirtualMachine.andCode:
+        s.append( is + a + " = " + b + " != 0 && " + c + " != 0 ? 1 : 0;\n" );
+        return true;
+      case VirtualMachine.orCode:
+        s.append( is + a + " = " + b + " != 0 || " + c + " != 0 ? 1 : 0;\n" );
+        return true;
+      case VirtualMachine.notCode:
+        s.append( is + a + " = " + b + " == 0 ? 1 : 0;\n" );  return true;
+      case VirtualMachine.oppCode:
+        s.append( is + a + " = - " + b + ";\n" );  return true;
+
+      case VirtualMachine.litCode:
+        s.append( is + a + " = " + mem[k+2] + ";\n" );
+        return true;
+
+      case VirtualMachine.copyCode:
+        s.append( is + a + " = " + b + ";\n" );
+        return true;
+
+      case VirtualMachine.getCode:
+        s.append( is + "{ int addr = " + b + " + " + c + ";\n" );
+        s.append( is + "  " + a + " = addr >= heapBase ? " +
+                  ( vm.offHeap != null ? "vm.offHeap.get( addr )" :
+                                         "heap[ addr - heapBase ]" ) +
+                  " : mem[ addr ]; }\n" );
+        return true;
+
+      case VirtualMachine.putCode:
+        s.append( is + "{ int addr = " + a + " + " + b + ";\n" );
+        if( vm.offHeap != null )
+          s.append( is + "  if( addr >= heapBase ) vm.offHeap.put( addr, " + c + " );\n" );
+        else
+          s.append( is + "  if( addr >= heapBase ) heap[ addr - heapBase ] = " + c + ";\n" );
+        s.append( is + "  else mem[ addr ] = " + c + "; }\n" );
+        return true;
+
+      case VirtualMachine.fillCode:
+        s.append( is + "vm.fill( " + a + ", " + b + ", " + c + " );\n" );  return true;
+      case VirtualMachine.moveCode:
+        s.append( is + "vm.move( " + a + ", " + b + ", " + c + " );\n" );  return true;
+      case VirtualMachine.compareCode:
+        s.append( is + a + " = vm.compare( " + b + ", " + c + ", " +
+                  cell( mem[k+4] ) + " );\n" );
+        return true;
+      case VirtualMachine.sumCode:
+        s.append( is + a + " = vm.sum( " + b + ", " + c + " );\n" );  return true;
+      case VirtualMachine.minCode:
+        s.append( is + a + " = vm.min( " + b + ", " + c + " );\n" );  return true;
+      case VirtualMachine.maxCode:
+        s.append( is + a + " = vm.max( " + b + ", " + c + " );\n" );  return true;
+
+      case VirtualMachine.haltCode:
+        s.append( is + "vm.halted = true;\n" );
+        s.append( is + "return " + (n+1) + ";\n" );
+        return false;
+
+      case VirtualMachine.inputCode:
+        s.append( is + a + " = io.readInt();\n" );  return true;
+      case VirtualMachine.outputCode:
+        s.append( is + "io.writeInt( " + a + " );\n" );  return true;
+      case VirtualMachine.newlineCode:
+        s.append( is + "io.newline();\n" );  return true;
+
+      case VirtualMachine.symbolCode:
+        s.append( is + "{ int sym = " + a + ";\n" );
+        s.append( is + "  if( 32 <= sym && sym <= 126 ) io.symbol( sym ); }\n" );
+        return true;
+
+      case VirtualMachine.newCode:
+        s.append( is + "{ int addr = vm.collector.allocate( " + b +
+                  ", sp + 2 + numPassed, rv );\n" );
+        s.append( is + "  " + reload + "\n" );
+        s.append( is + "  " + a + " = addr; }\n" );
+        return true;
+
+      case VirtualMachine.allocGlobalCode:
+        s.append( is + "bp = gp + " + mem[k+1] + ";  sp = bp + 2;\n" );
+        s.append( is + "if( sp > stackEnd ) { vm.growStack( sp ); " + reload + " }\n" );
+        return true;
+
+      case VirtualMachine.toGlobalCode:
+        s.append( is + "mem[ gp + " + mem[k+1] + " ] = " + b + ";\n" );
+        return true;
+
+      case VirtualMachine.fromGlobalCode:
+        s.append( is + a + " = mem[ gp + " + mem[k+2] + " ];\n" );
+        return true;
+
+      case VirtualMachine.debugCode:
+        s.append( is + "VPLLog.println( VPLLog.summary, \"[debug] ip = " + k +
+                  " bp = \" + bp + \" sp = \" + sp + \" hp = \" + vm.hp + " +
+                  "\" rv = \" + rv );\n" );
+        s.append( is + "if( vm.stopAtDebug ) { vm.stopStep = vm.step;  return " +
+                  (n+1) + "; }\n" );
+        return true;
+
+      default:
+        s.append( is + "vm.fatal(\"unknown opcode [" + op + "] at ip = " + k +
+                  "\");\n" );
+        return true;
+    }
+  }
+
+  // compile the source of the generated class in memory,
+  // returning its class file or null
+  private static byte[] javac( JavaCompiler javac, String source )
+  {
+    JavaFileObject input = new SimpleJavaFileObject(
+              URI.create( "string:///" + className + ".java" ),
+              JavaFileObject.Kind.SOURCE )
+    {
+      public CharSequence getCharContent( boolean ignoreEncodingErrors )
+      {
+        return source;
+      }
+    };
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(
+                             javac.getStandardFileManager( null, null, null ) )
+    {
+      public JavaFileObject getJavaFileForOutput( Location location,
+                       String name, JavaFileObject.Kind kind, FileObject sibling )
+      {
+        return new SimpleJavaFileObject(
+                    URI.create( "bytes:///" + name + ".class" ), kind )
+        {
+          public OutputStream openOutputStream()
+          {
+            return output;
+          }
+        };
+      }
+    };
+
+    DiagnosticCollector<JavaFileObject> diagnostics =
+                                      new DiagnosticCollector<JavaFileObject>();
+    List<String> options = Arrays.asList( "-classpath",
+              System.getProperty( "java.class.path" ), "-g:none", "-proc:none" );
+    boolean ok = javac.getTask( null, files, diagnostics, options, null,
+                                Arrays.asList( input ) ).call();
+    if( ! ok )
+    {
+      VPLLog.println( VPLLog.summary, "could not compile the program, " +
+                      "interpreting" );
+      for( Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics() )
+        VPLLog.println( VPLLog.trace, d.toString() );
+      return null;
+    }
+    return output.toByteArray();
+  }
+
+}// VPLCompiler
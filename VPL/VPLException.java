@@ -0,0 +1,15 @@
+/*  an error that makes it impossible for a VPL machine to go
+    on, like bad input, running out of memory, or a program the
+    verifier rejects; the message is what gets reported
+*/
+
+public class VPLException extends RuntimeException
+{
+  private static final long serialVersionUID = 1L;
+
+  public VPLException( String message )
+  {
+    super( message );
+  }
+
+}// VPLException
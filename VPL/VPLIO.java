@@ -0,0 +1,43 @@
+/*  the console as seen by the input, output, newline,
+    and symbol ops
+
+    ConsoleIO is the interactive version (prompt shown
+    right away, Scanner for input), BatchIO is for
+    piping large amounts of data through a program,
+    QueueIO is for programs run by VPLScheduler, with input
+    handed to them as it arrives, and RecordIO and ReplayIO
+    record the input of a run and play it back
+*/
+
+public interface VPLIO
+{
+  // show the "? " prompt and return the next integer typed
+  int readInt();
+
+  // whether readInt can be answered without waiting; ConsoleIO and
+  // BatchIO just wait in readInt, so they always say yes, while
+  // QueueIO says no until input arrives and the machine stops
+  // at the input op instead
+  boolean inputReady();
+
+  void writeInt( int value );
+
+  void newline();
+
+  // show the character with code c (known to be between 32 and 126)
+  void symbol( int c );
+
+  // send any buffered output on its way
+  void flush();
+
+  // number of integers read so far
+  long inputsRead();
+
+  // number of output, newline, and symbol ops so far
+  long outputsWritten();
+
+  // read past count integers without showing any prompts, to
+  // pick up the input where a checkpointed run left it
+  void skipInputs( long count );
+
+}// VPLIO
@@ -0,0 +1,61 @@
+import java.io.*;
+
+/*  diagnostic output of the VPL simulator,
+    kept separate from the output of the VPL program
+    itself, which goes to standard output
+
+    diagnostics go to standard error through a buffered
+    writer, and only if the current level asks for them:
+
+       silent    nothing but fatal errors
+       summary   one line after loading, one after halting
+       trace     everything, including each line parsed
+                 and the contents of memory after loading
+*/
+
+public class VPLLog
+{
+  public static final int silent = 0;
+  public static final int summary = 1;
+  public static final int trace = 2;
+
+  static int level = summary;
+
+  static final PrintWriter out = new PrintWriter( new BufferedWriter(
+              new OutputStreamWriter( System.err ), 1 << 16 ) );
+
+  // convert a command line option to a level, or return -1
+  public static int parseLevel( String option )
+  {
+    if( option.equals( "-silent" ) ) return silent;
+    else if( option.equals( "-summary" ) ) return summary;
+    else if( option.equals( "-trace" ) ) return trace;
+    else return -1;
+  }
+
+  // return whether messages at level lvl are wanted, so callers can
+  // skip building them at all
+  public static boolean on( int lvl )
+  {
+    return level >= lvl;
+  }
+
+  public static void println( int lvl, String message )
+  {
+    if( level >= lvl )
+      out.println( message );
+  }
+
+  // fatal errors are shown at every level
+  public static void error( String message )
+  {
+    out.println( "Fatal error: " + message );
+    out.flush();
+  }
+
+  public static void flush()
+  {
+    out.flush();
+  }
+
+}// VPLLog
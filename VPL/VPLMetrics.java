@@ -0,0 +1,150 @@
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/*  live metrics (-metrics): the machine runs in slices of
+    sampleEvery instructions, and between slices its state is
+    copied into the fields below, which JMX clients (jconsole,
+    say) see as the MBean VPL:type=VirtualMachine,name="program"
+
+    the execution loop does nothing extra, since a slice ends
+    the same way a run does, and the numbers are at most one
+    slice old
+*/
+
+public class VPLMetrics implements VPLMetricsMBean
+{
+  static final long defaultSampleEvery = 1000000;
+
+  private final VirtualMachine vm;
+
+  private volatile long sampleEvery = defaultSampleEvery;
+
+  // the last sample
+  private volatile boolean halted;
+  private volatile long instructions, rate, averageRate;
+  private volatile int callDepth, stackCells, stackHighWater;
+  private volatile long heapCells;
+  private volatile int collections, globalCells;
+  private volatile long inputs, outputs;
+
+  // when the samples started, and when the last one was taken
+  private final long startNanos, startSteps;
+  private long lastNanos, lastSteps;
+
+  VPLMetrics( VirtualMachine vm )
+  {
+    this.vm = vm;
+    startNanos = lastNanos = System.nanoTime();
+    startSteps = lastSteps = vm.step;
+    update();
+  }
+
+  // make the metrics visible through the platform MBean server
+  void register()
+  {
+    try {
+      ObjectName name = new ObjectName( "VPL:type=VirtualMachine,name=" +
+                                        ObjectName.quote( vm.fileName ) );
+      ManagementFactory.getPlatformMBeanServer().registerMBean( this, name );
+    }
+    catch( JMException e )
+    {
+      VPLLog.println( VPLLog.silent, "could not register metrics: " +
+                      e.getMessage() );
+    }
+  }
+
+  // run the program loaded in vm (with compiler, if not null)
+  // until it halts, taking a sample after each slice
+  void run( VPLCompiler compiler )
+  {
+    boolean done = false;
+    while( ! done )
+    {
+      long slice = sampleEvery;
+      done = compiler != null ? compiler.run( slice ) : vm.run( slice );
+      update();
+    }
+  }
+
+  // copy the state of the machine, which is not running
+  void update()
+  {
+    long now = System.nanoTime(), steps = vm.step;
+    if( now > lastNanos )
+      rate = (long) ( (steps - lastSteps) * 1e9 / (now - lastNanos) );
+    if( now > startNanos )
+      averageRate = (long) ( (steps - startSteps) * 1e9 / (now - startNanos) );
+    lastNanos = now;  lastSteps = steps;
+
+    // follow the saved bp of each frame down to the frame of main,
+    // which sits just above the globals
+    int[] mem = vm.mem;
+    int bp = vm.bp, depth = 0;
+    while( bp+1 < mem.length && mem[bp+1] < bp && mem[bp+1] >= vm.gp )
+    {
+      bp = mem[bp+1];
+      depth++;
+    }
+
+    halted = vm.halted;
+    instructions = steps;
+    callDepth = depth;
+    stackCells = vm.sp - bp;
+    stackHighWater = Math.max( stackHighWater, stackCells );
+    heapCells = vm.max - vm.hp;
+    collections = vm.collector.collections;
+    globalCells = bp - vm.gp;
+    inputs = vm.io.inputsRead();
+    outputs = vm.io.outputsWritten();
+  }
+
+  public String getProgram()
+  {  return vm.fileName;  }
+
+  public boolean isHalted()
+  {  return halted;  }
+
+  public long getInstructions()
+  {  return instructions;  }
+
+  public long getInstructionsPerSecond()
+  {  return rate;  }
+
+  public long getAverageInstructionsPerSecond()
+  {  return averageRate;  }
+
+  public int getCallDepth()
+  {  return callDepth;  }
+
+  public int getStackCells()
+  {  return stackCells;  }
+
+  public int getStackHighWater()
+  {  return stackHighWater;  }
+
+  public long getHeapCells()
+  {  return heapCells;  }
+
+  public int getGarbageCollections()
+  {  return collections;  }
+
+  public int getGlobalCells()
+  {  return globalCells;  }
+
+  public long getInputs()
+  {  return inputs;  }
+
+  public long getOutputs()
+  {  return outputs;  }
+
+  public long getSampleEvery()
+  {  return sampleEvery;  }
+
+  public void setSampleEvery( long instructions )
+  {
+    if( instructions > 0 )
+      sampleEvery = instructions;
+  }
+
+}// VPLMetrics
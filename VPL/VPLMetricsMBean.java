@@ -0,0 +1,34 @@
+/*  what VPLMetrics shows over JMX, as of its last sample
+*/
+
+public interface VPLMetricsMBean
+{
+  String getProgram();
+
+  boolean isHalted();
+
+  long getInstructions();
+
+  // over the time between the last two samples, and since the start
+  long getInstructionsPerSecond();
+  long getAverageInstructionsPerSecond();
+
+  // calls in progress, and the cells of the stack above the frame of main
+  int getCallDepth();
+  int getStackCells();
+  int getStackHighWater();
+
+  // cells from hp up to the end of memory, and how many collections
+  long getHeapCells();
+  int getGarbageCollections();
+
+  int getGlobalCells();
+
+  long getInputs();
+  long getOutputs();
+
+  // instructions between samples
+  long getSampleEvery();
+  void setSampleEvery( long instructions );
+
+}// VPLMetricsMBean
@@ -0,0 +1,395 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*  cooperative scheduler: hosts many VPL programs in one process,
+    each on its own VirtualMachine, sharing a few worker threads
+
+    a worker takes the program at the front of the ready queue,
+    runs it for one quantum of instructions (run( quantum ) stops
+    between instructions and can just be called again, so nothing
+    has to be preempted), and puts it at the back of the queue.
+    A program that comes to an input op with no input ready stops
+    there and is parked, holding no thread at all, until its
+    QueueIO gets input (or is closed) and puts it back in the
+    ready queue, so hundreds of mostly idle interactive programs
+    need no more threads than there are workers
+
+    for each program it keeps
+       the instructions executed, the slices run, and the time
+       spent running them
+       how often it was parked waiting for input, and for how long
+       the time spent ready but waiting for a worker, in all and
+       the longest, which shows how fairly the workers are shared
+
+       java VPLScheduler [options] prog1 prog2 ...
+
+    runs each program with the integers in prog.in (if there is
+    such a file) as its input, writes its output to prog.out,
+    and lists the statistics of all the programs at the end
+
+    options:
+       -workers n    number of worker threads (default: one per processor)
+       -quantum n    instructions per slice (default 100000)
+       -delay ms     hand each program one integer of input every ms
+                     milliseconds, instead of all of it at the start
+       -mem cells    address space of each machine
+       -maxsteps n, -maxtime ms, -maxstack cells, -maxheap cells
+                     limits on each program (see Limits); one that
+                     reaches a limit fails, giving up its worker
+*/
+
+public class VPLScheduler
+{
+  // states of a program
+  static final int ready = 0, running = 1, waiting = 2, halted = 3, failed = 4;
+  private static final String[] stateNames =
+                            { "ready", "running", "waiting", "halted", "failed" };
+
+  static final int defaultQuantum = 100000;
+
+  // a program hosted by the scheduler, whose fields are only used
+  // while holding its lock
+  static class Program
+  {
+    final String name;
+    final VirtualMachine vm;
+    final QueueIO io;
+
+    int state;
+    String error;
+
+    long slices, runNanos;
+    long waits, waitNanos;
+    long readyNanos, longestReady;
+
+    // when it last became ready, or started waiting
+    private long since;
+
+    Program( String name, VirtualMachine vm, QueueIO io )
+    {
+      this.name = name;  this.vm = vm;  this.io = io;
+    }
+  }
+
+  private final int quantum;
+  private final LinkedBlockingQueue<Program> queue =
+                                       new LinkedBlockingQueue<Program>();
+  private final Thread[] workers;
+
+  // every program started, and the number not yet halted or failed
+  private final ArrayList<Program> programs = new ArrayList<Program>();
+  private int live;
+
+  // limits each program started gets its own copy of, or null
+  Limits limits;
+
+  VPLScheduler( int numWorkers, int quantum )
+  {
+    this.quantum = quantum;
+    workers = new Thread[ numWorkers ];
+    for( int k=0; k<numWorkers; ++k )
+    {
+      workers[k] = new Thread( this::work, "vpl-worker-" + k );
+      workers[k].setDaemon( true );
+      workers[k].start();
+    }
+  }
+
+  // load the program in fileName, with its output going to out,
+  // and start it, returning the program so input can be handed
+  // to it through its io
+  Program start( String fileName, int limit, OutputStream out ) throws IOException
+  {
+    QueueIO io = new QueueIO( out );
+    VirtualMachine vm = new VirtualMachine( io );
+    if( limits != null )
+      vm.limits = new Limits( limits );
+    vm.load( fileName, limit );
+
+    Program p = new Program( fileName, vm, io );
+    io.setListener( () -> wake( p ) );
+    synchronized( this )
+    {
+      programs.add( p );
+      live++;
+    }
+    synchronized( p )
+    {
+      makeReady( p, System.nanoTime() );
+    }
+    return p;
+  }
+
+  // put p at the back of the ready queue (holding p's lock)
+  private void makeReady( Program p, long now )
+  {
+    p.state = ready;
+    p.since = now;
+    queue.add( p );
+  }
+
+  // input has come for p, so if it is parked it can go on
+  private void wake( Program p )
+  {
+    synchronized( p )
+    {
+      if( p.state == waiting )
+      {
+        long now = System.nanoTime();
+        p.waitNanos += now - p.since;
+        makeReady( p, now );
+      }
+    }
+  }
+
+  // what each worker thread does until shutdown
+  private void work()
+  {
+    for(;;)
+    {
+      Program p;
+      try {
+        p = queue.take();
+      }
+      catch( InterruptedException e )
+      {
+        return;
+      }
+
+      long start = System.nanoTime();
+      synchronized( p )
+      {
+        p.state = running;
+        p.readyNanos += start - p.since;
+        p.longestReady = Math.max( p.longestReady, start - p.since );
+      }
+
+      boolean done;
+      String error = null;
+      try {
+        try {
+          done = p.vm.run( quantum );
+        }
+        finally
+        {
+          p.io.flush();
+        }
+      }
+      catch( VPLException e )
+      {
+        done = true;
+        error = e.getMessage();
+      }
+      catch( RuntimeException | Error e )
+      {// anything else (running out of memory growing mem, or the
+       // program's output failing) ends just this program, which
+       // still has to be finished or awaitAll would never return
+        done = true;
+        error = e.toString();
+      }
+
+      long end = System.nanoTime();
+      synchronized( p )
+      {
+        p.slices++;
+        p.runNanos += end - start;
+        if( done )
+        {
+          p.state = error == null ? halted : failed;
+          p.error = error;
+          finished();
+        }
+        else if( p.vm.waitingForInput && ! p.io.inputReady() )
+        {// park until wake
+          p.state = waiting;
+          p.waits++;
+          p.since = end;
+        }
+        else
+          makeReady( p, end );
+      }
+    }
+  }
+
+  private synchronized void finished()
+  {
+    live--;
+    notifyAll();
+  }
+
+  // wait until every program started so far has halted or failed
+  synchronized void awaitAll() throws InterruptedException
+  {
+    while( live > 0 )
+      wait();
+  }
+
+  void shutdown()
+  {
+    for( Thread w : workers )
+      w.interrupt();
+  }
+
+  // list the statistics of every program, and the totals
+  synchronized void report( PrintWriter out, long wallNanos )
+  {
+    out.printf("%-24s %-8s %14s %8s %10s %14s %8s %10s %10s %10s%n",
+               "program", "state", "instructions", "slices", "run ms",
+               "instrs/s", "waits", "wait ms", "ready ms", "max ready");
+    long steps = 0, runNanos = 0, longest = 0;
+    for( Program p : programs )
+    {
+      synchronized( p )
+      {
+        out.printf("%-24s %-8s %14d %8d %10.1f %14d %8d %10.1f %10.1f %10.3f%n",
+                   p.name, stateNames[ p.state ], p.vm.step, p.slices,
+                   p.runNanos/1e6,
+                   p.runNanos > 0 ? p.vm.step*1000000000L/p.runNanos : 0,
+                   p.waits, p.waitNanos/1e6, p.readyNanos/1e6,
+                   p.longestReady/1e6 );
+        if( p.state == failed )
+          out.println( "  " + p.error );
+        steps += p.vm.step;
+        runNanos += p.runNanos;
+        longest = Math.max( longest, p.longestReady );
+      }
+    }
+    out.printf("%d programs, %d instructions in %.1f ms on %d workers " +
+               "(%d instructions/s), longest wait for a worker %.3f ms%n",
+               programs.size(), steps, wallNanos/1e6, workers.length,
+               wallNanos > 0 ? steps*1000000000L/wallNanos : 0, longest/1e6 );
+  }
+
+  public static void main( String[] args ) throws Exception
+  {
+    int numWorkers = Runtime.getRuntime().availableProcessors();
+    int quantum = defaultQuantum, delay = 0;
+    int limit = VirtualMachine.defaultMax;
+    Limits limits = new Limits();
+    boolean limited = false;
+
+    int first = 0;
+    try {
+      while( first < args.length && args[first].startsWith( "-" ) )
+      {
+        String option = args[first];
+        if( option.equals( "-workers" ) && first+1 < args.length )
+          numWorkers = Integer.parseInt( args[++first] );
+        else if( option.equals( "-quantum" ) && first+1 < args.length )
+          quantum = Integer.parseInt( args[++first] );
+        else if( option.equals( "-delay" ) && first+1 < args.length )
+          delay = Integer.parseInt( args[++first] );
+        else if( option.equals( "-mem" ) && first+1 < args.length )
+          limit = Integer.parseInt( args[++first] );
+        else if( limits.option( args, first ) )
+        {
+          limited = true;  first++;
+        }
+        else if( VPLLog.parseLevel( option ) >= 0 )
+          VPLLog.level = VPLLog.parseLevel( option );
+        else
+          usage();
+        first++;
+      }
+    }
+    catch( NumberFormatException e )
+    {
+      usage();
+    }
+    if( first == args.length || numWorkers < 1 || quantum < 1 || ! limits.valid() )
+      usage();
+
+    long startTime = System.nanoTime();
+    VPLScheduler scheduler = new VPLScheduler( numWorkers, quantum );
+    if( limited )
+      scheduler.limits = limits;
+
+    ArrayList<Program> started = new ArrayList<Program>();
+    ArrayList<int[]> inputs = new ArrayList<int[]>();
+    ArrayList<OutputStream> outputs = new ArrayList<OutputStream>();
+    boolean ok = true;
+    for( int k=first; k<args.length; ++k )
+    {
+      OutputStream out = new FileOutputStream( args[k] + ".out" );
+      try {
+        started.add( scheduler.start( args[k], limit, out ) );
+        inputs.add( readInput( args[k] + ".in" ) );
+        outputs.add( out );
+      }
+      catch( VPLException e )
+      {
+        VPLLog.println( VPLLog.silent, args[k] + ": FAILED: " + e.getMessage() );
+        out.close();
+        ok = false;
+      }
+    }
+
+    // hand out the input, one integer per program per round
+    int[] next = new int[ started.size() ];
+    boolean more = true;
+    while( more )
+    {
+      more = false;
+      for( int k=0; k<started.size(); ++k )
+      {
+        if( next[k] < inputs.get(k).length )
+        {
+          started.get(k).io.add( inputs.get(k)[ next[k] ] );
+          next[k]++;
+          more = true;
+        }
+        if( next[k] == inputs.get(k).length )
+        {
+          started.get(k).io.close();
+          next[k]++;
+        }
+      }
+      if( more && delay > 0 )
+        Thread.sleep( delay );
+    }
+
+    scheduler.awaitAll();
+    scheduler.shutdown();
+    for( OutputStream out : outputs )
+      out.close();
+
+    for( Program p : started )
+      ok &= p.state == halted;
+    if( VPLLog.on( VPLLog.summary ) )
+      scheduler.report( VPLLog.out, System.nanoTime() - startTime );
+    VPLLog.flush();
+
+    System.exit( ok ? 0 : 1 );
+  }
+
+  // the integers in fileName, or none if there is no such file
+  private static int[] readInput( String fileName ) throws IOException
+  {
+    File file = new File( fileName );
+    if( ! file.isFile() )
+      return new int[0];
+
+    int[] values = new int[64];
+    int count = 0;
+    try( Scanner in = new Scanner( file ) )
+    {
+      while( in.hasNextInt() )
+      {
+        if( count == values.length )
+          values = Arrays.copyOf( values, 2*count );
+        values[ count++ ] = in.nextInt();
+      }
+    }
+    return Arrays.copyOf( values, count );
+  }
+
+  private static void usage()
+  {
+    System.out.println("Usage: java VPLScheduler [-silent|-summary] [-workers <n>] " +
+                       "[-quantum <n>] [-delay <ms>] [-mem <cells>] " + Limits.usage +
+                       " <vpl program>...");
+    System.exit(1);
+  }
+
+}// VPLScheduler
@@ -0,0 +1,310 @@
+import java.util.*;
+
+/*  checks a loaded program before it runs, so the execution
+    loop can trust it
+
+    the code is split into functions: "main" starts at 0, and
+    every call or spawn target starts another one, which runs up
+    to the next.  The frame of a function holds the cells passed to it
+    (the fewest any call passes) plus the cells its alloc ops
+    add.  The verifier checks that
+
+       every opcode is known and every instruction fits
+       in the code
+       every call and spawn goes to the start of an instruction,
+       and every jump to the start of an instruction in the same
+       function
+       no function runs off its end into the next, except right
+       after a call (Jive ends main with a call when main halts
+       somewhere else), where running off the end is a fatal
+       error at run time
+       every pass is followed by more passes and then a call or
+       a spawn
+       every alloc is in the straight-line code at the start
+       of its function, so it runs once per call
+       every frame operand is a cell of the frame, and every
+       global operand a cell of the globals (made by an
+       allocGlobal in "main")
+
+    and if any of that fails the program is rejected, with a
+    line for each problem.  Otherwise, for each function it
+    records the most cells above bp the function can reach,
+    counting the passes and frame header of the calls it makes,
+    so the execution loop only has to check for room at a call,
+    not at every pass and alloc.
+*/
+
+public class VPLVerifier
+{
+  // for the address of the first instruction of each function, the
+  // most cells above bp that function can reach, 0 elsewhere
+  int[] extentAt;
+
+  // the largest extent of all the functions
+  int maxExtent;
+
+  // addresses of the getRetval instructions that end a function,
+  // so running past them would run into the next function
+  boolean[] fallsOffAt;
+
+  private static final int frameHeader = 2;
+
+  // at most this many problems are listed
+  private static final int maxProblems = 20;
+
+  private final VirtualMachine vm;
+
+  private ArrayList<String> problems;
+
+  public VPLVerifier( VirtualMachine vm )
+  {
+    this.vm = vm;
+  }
+
+  // check the code in the memory of vm up to codeEnd, rejecting
+  // it with a fatal error if it breaks any rule
+  void verify( int codeEnd )
+  {
+    int[] mem = vm.mem;
+    problems = new ArrayList<String>();
+    int size = codeEnd + 1;
+
+    // instruction boundaries: instruction m is at address[m],
+    // and indexAt[k] is the instruction at address k, or -1
+    int[] indexAt = new int[ size ];
+    Arrays.fill( indexAt, -1 );
+    int[] address = new int[ size ];
+    int numInsns = 0;
+    for( int k=0; k<size; )
+    {
+      int op = mem[k];
+      if( op < 0 || op == VirtualMachine.labelCode || op > VirtualMachine.lastOp )
+      {// can't find any further instructions
+        problem( k, op, "unknown opcode" );
+        reject();
+      }
+      int length = VirtualMachine.instrLength( op );
+      if( k + length > size )
+        problem( k, op, "needs " + length + " cells but only " + (size-k) +
+                        " are left in the code" );
+      indexAt[k] = numInsns;
+      address[ numInsns ] = k;  numInsns++;
+      k += length;
+    }
+    reject();
+
+    // functions, and the instructions control can arrive at
+    // other than from the one before
+    boolean[] isFunction = new boolean[ numInsns+1 ];
+    boolean[] isTarget = new boolean[ numInsns+1 ];
+    isFunction[0] = true;
+    for( int m=0; m<numInsns; ++m )
+    {
+      int k = address[m], op = mem[k];
+      if( op == VirtualMachine.callCode || op == VirtualMachine.jumpCode ||
+          op == VirtualMachine.condJumpCode || op == VirtualMachine.spawnCode )
+      {
+        int t = mem[k+1];
+        if( t < 0 || t >= size || indexAt[t] < 0 )
+          problem( k, op, (op == VirtualMachine.callCode ? "calls " :
+                           op == VirtualMachine.spawnCode ? "spawns " : "jumps to ") +
+                          t + ", which is not an instruction" );
+        else if( op == VirtualMachine.callCode )
+        {
+          isFunction[ indexAt[t] ] = true;
+          isTarget[ m+1 ] = true;  // returned to
+        }
+        else if( op == VirtualMachine.spawnCode )
+          isFunction[ indexAt[t] ] = true;
+        else
+          isTarget[ indexAt[t] ] = true;
+      }
+    }
+    reject();
+
+    // function each instruction is in, by the index of its start
+    int[] function = new int[ numInsns ];
+    int current = 0;
+    for( int m=0; m<numInsns; ++m )
+    {
+      if( isFunction[m] )
+        current = m;
+      function[m] = current;
+    }
+
+    // fewest and most cells passed by the calls (and spawns) to each
+    // function (counting calls made by jumping into a run of passes)
+    int[] minPassed = new int[ numInsns ], maxPassed = new int[ numInsns ];
+    Arrays.fill( minPassed, Integer.MAX_VALUE );
+    minPassed[0] = 0;
+    for( int m=0; m<numInsns; ++m )
+    {
+      int k = address[m];
+      if( mem[k] == VirtualMachine.passCode )
+      {
+        int c = m;
+        while( c < numInsns && mem[ address[c] ] == VirtualMachine.passCode )
+          c++;
+        if( c == numInsns || ( mem[ address[c] ] != VirtualMachine.callCode &&
+                               mem[ address[c] ] != VirtualMachine.spawnCode ) )
+          problem( k, mem[k], "is not followed by a call or spawn" );
+      }
+      else if( mem[k] == VirtualMachine.callCode || mem[k] == VirtualMachine.spawnCode )
+      {
+        int t = indexAt[ mem[k+1] ];
+        int run = 0;
+        while( m-run-1 >= 0 && mem[ address[m-run-1] ] == VirtualMachine.passCode )
+          run++;
+        maxPassed[t] = Math.max( maxPassed[t], run );
+        minPassed[t] = Math.min( minPassed[t], run );
+        for( int j=0; j<run; ++j )
+          if( isTarget[ m-j ] )
+            minPassed[t] = Math.min( minPassed[t], j );
+      }
+    }
+    reject();
+
+    // cells added by alloc ops, longest run of passes, and
+    // number of globals, by function
+    int[] allocated = new int[ numInsns ], mostPassing = new int[ numInsns ];
+    int globals = 0;
+    boolean straight = true;
+    for( int m=0; m<numInsns; ++m )
+    {
+      int k = address[m], op = mem[k], f = function[m];
+      if( m == f )
+        straight = true;
+      else if( isTarget[m] )
+        straight = false;
+
+      if( op == VirtualMachine.allocCode )
+      {
+        if( mem[k+1] < 0 )
+          problem( k, op, "allocates " + mem[k+1] + " cells" );
+        else if( ! straight )
+          problem( k, op, "can run more than once per call" );
+        else
+          allocated[f] += mem[k+1];
+      }
+      else if( op == VirtualMachine.allocGlobalCode )
+      {
+        if( f != 0 )
+          problem( k, op, "is not in main" );
+        else if( mem[k+1] < 0 )
+          problem( k, op, "allocates " + mem[k+1] + " cells" );
+        else
+          globals = Math.max( globals, mem[k+1] );
+      }
+      else if( op == VirtualMachine.passCode &&
+               ( m == 0 || mem[ address[m-1] ] != VirtualMachine.passCode ) )
+      {// first pass of a run
+        int run = 1;
+        while( mem[ address[m+run] ] == VirtualMachine.passCode )
+          run++;
+        mostPassing[f] = Math.max( mostPassing[f], run );
+      }
+      else if( op == VirtualMachine.jumpCode || op == VirtualMachine.condJumpCode )
+        straight = false;
+    }
+
+    // operands, jumps, and function ends
+    boolean[] fallsOff = new boolean[ size+1 ];
+    for( int m=0; m<numInsns; ++m )
+    {
+      int k = address[m], op = mem[k], f = function[m];
+      int frame = minPassed[f] + allocated[f];
+
+      for( int j : cellOperands( op ) )
+        if( mem[k+j] < 0 || mem[k+j] >= frame )
+          problem( k, op, "uses cell " + mem[k+j] + " but the frame of the " +
+                  "function at " + address[f] + " has " + frame + " cells" );
+
+      if( op == VirtualMachine.toGlobalCode || op == VirtualMachine.fromGlobalCode ||
+          op == VirtualMachine.casCode || op == VirtualMachine.fetchAddCode )
+      {// toGlobal n a, fromGlobal a n, cas a n b c, fetchAdd a n b
+        int n = op == VirtualMachine.toGlobalCode ? mem[k+1] : mem[k+2];
+        if( n < 0 || n >= globals )
+          problem( k, op, "uses global " + n + " but there are " + globals );
+      }
+
+      if( ( op == VirtualMachine.jumpCode || op == VirtualMachine.condJumpCode ) &&
+          function[ indexAt[ mem[k+1] ] ] != f )
+        problem( k, op, "jumps to " + mem[k+1] + ", outside the function at " +
+                        address[f] );
+
+      boolean last = m+1 == numInsns || function[m+1] != f;
+      if( last && op == VirtualMachine.getRetvalCode && m > 0 &&
+          mem[ address[m-1] ] == VirtualMachine.callCode )
+        fallsOff[k] = true;  // getRetval after a call
+      else if( last && op != VirtualMachine.returnCode &&
+               op != VirtualMachine.jumpCode && op != VirtualMachine.haltCode )
+        problem( k, op, "ends the function at " + address[f] +
+                        " but doesn't return, jump, or halt" );
+    }
+    reject();
+    fallsOffAt = fallsOff;
+
+    // extent of each function: header, passed cells, allocated cells,
+    // and the passed cells and header of the calls it makes
+    extentAt = new int[ size+1 ];
+    maxExtent = 0;
+    for( int m=0; m<numInsns; ++m )
+    {
+      if( function[m] != m )
+        continue;
+      extentAt[ address[m] ] = frameHeader + maxPassed[m] + allocated[m] +
+                               frameHeader + mostPassing[m];
+      maxExtent = Math.max( maxExtent, extentAt[ address[m] ] );
+    }
+
+    problems = null;
+  }
+
+  // positions after the opcode of the operands that are frame cells
+  private static int[] cellOperands( int op )
+  {
+    if( op == VirtualMachine.passCode || op == VirtualMachine.returnCode ||
+        op == VirtualMachine.getRetvalCode || op == VirtualMachine.inputCode ||
+        op == VirtualMachine.outputCode || op == VirtualMachine.symbolCode ||
+        op == VirtualMachine.litCode || op == VirtualMachine.fromGlobalCode )
+      return new int[]{ 1 };
+    else if( op == VirtualMachine.condJumpCode || op == VirtualMachine.toGlobalCode ||
+             op == VirtualMachine.spawnCode )
+      return new int[]{ 2 };
+    else if( op == VirtualMachine.notCode || op == VirtualMachine.oppCode ||
+             op == VirtualMachine.copyCode || op == VirtualMachine.newCode ||
+             op == VirtualMachine.joinCode )
+      return new int[]{ 1, 2 };
+    else if( op == VirtualMachine.fetchAddCode )
+      return new int[]{ 1, 3 };
+    else if( op == VirtualMachine.casCode )
+      return new int[]{ 1, 3, 4 };
+    else if( op == VirtualMachine.compareCode )
+      return new int[]{ 1, 2, 3, 4 };
+    else if( (VirtualMachine.addCode <= op && op <= VirtualMachine.orCode) ||
+             op == VirtualMachine.getCode || op == VirtualMachine.putCode ||
+             (VirtualMachine.fillCode <= op && op <= VirtualMachine.maxCode) )
+      return new int[]{ 1, 2, 3 };
+    else
+      return new int[0];
+  }
+
+  private void problem( int k, int op, String message )
+  {
+    if( problems.size() < maxProblems )
+      problems.add( "at ip = " + k + " (" + VirtualMachine.opName( op ) + "): " + message );
+    else if( problems.size() == maxProblems )
+      problems.add( "and more" );
+  }
+
+  // if there are any problems, list them and give up
+  private void reject()
+  {
+    if( problems.isEmpty() )
+      return;
+    for( String p : problems )
+      VPLLog.println( VPLLog.silent, vm.fileName + ": " + p );
+    vm.fatal( vm.fileName + " rejected by the verifier" );
+  }
+
+}// VPLVerifier
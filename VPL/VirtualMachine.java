@@ -0,0 +1,1706 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+/*  one VPL machine: its own memory, registers, console, and
+    loaded program, so any number of them can run in one JVM,
+    each on its own thread
+
+    the way to run a program is
+
+       VirtualMachine vm = new VirtualMachine( io );
+       vm.load( fileName, limit );
+       vm.run();
+
+    an error that makes it impossible to go on throws a
+    VPLException, after which the machine is done
+
+    a program that spawns calls runs them on machines of their
+    own, made and run by Workers
+*/
+
+public class VirtualMachine
+{
+  String fileName;
+
+  // the console used by the input, output, newline, and symbol ops
+  VPLIO io;
+
+  // allocator behind the new op
+  final Heap collector;
+
+  // profile of the run, or null if not profiling
+  Profiler profiler;
+
+  // bit n of covered[n/64] is set once instruction n has run, or
+  // covered is null if not keeping coverage (see Coverage)
+  long[] covered;
+
+  // limits on the run, or null if it has none (see Limits), and
+  // the first cell past the stack they allow
+  Limits limits;
+  int stackCap = Integer.MAX_VALUE;
+
+  // cells above the top of the stack that the running function
+  // may use without checking (from the verifier)
+  int stackReserve;
+
+  // memory is an address space of max cells, kept in two segments
+  // that each grow on demand a page at a time:
+  //   mem holds the code, the globals, and the stack, which all grow
+  //   up from index 0, so cell k is just mem[k]
+  //   heap holds cells heapBase up to max-1, growing down with hp,
+  //   so cell k is heap[k-heapBase]
+  // the addresses in between are not backed by anything yet
+  // (with -offheap the heap segment is offHeap instead, and heap
+  // stays empty)
+  int max;
+  int[] mem;
+  int[] heap;
+  int heapBase;
+  OffHeap offHeap;
+  int ip, bp, sp, rv, hp, numPassed, gp;
+
+  // cells are allocated in pages of this many
+  static final int pageSize = 4096;
+
+  // largest address space used when no memory size is given
+  static final int defaultMax = 1 << 30;
+  long step;
+
+  // whether the program has executed halt
+  boolean halted;
+
+  // whether run( count ) should stop right after a debug op
+  boolean stopAtDebug;
+
+  // compiled code goes back to VPLCompiler.run once step reaches this
+  long stopStep = Long.MAX_VALUE;
+
+  // whether run( count ) stopped at an input op because the
+  // console had no input ready
+  boolean waitingForInput;
+
+  // whether run( count ) stopped at a breakpoint
+  boolean atBreakpoint;
+
+  // whether decode makes fused calls and superinstructions; the
+  // Debugger turns this off so any instruction can be stopped at
+  boolean fusing = true;
+
+  // the machines running spawned calls, once the program has
+  // spawned one, and how many threads and cells of stack they
+  // get (-workers, -stack)
+  Workers workers;
+  int workerThreads = Runtime.getRuntime().availableProcessors();
+  int spawnStack = defaultSpawnStack;
+  static final int defaultSpawnStack = 1 << 16;
+
+  // once there are workers, the stack can't grow and has to
+  // stay below stackLimit
+  int stackLimit;
+
+  // whether this machine runs a spawned call, and whether run
+  // stopped because that call returned
+  boolean spawned, returned;
+
+  // whether run stopped at a spawn op with no workers yet, at a
+  // new op that has to wait for the other machines, or at a join
+  // of a call that isn't done
+  boolean spawning, needsMemory;
+  Workers.Call joining;
+
+  // label -> index in mem where the label was defined
+  IntIntMap labels;
+
+  VirtualMachine( VPLIO io )
+  {
+    this.io = io;
+    collector = new Heap( this );
+  }
+
+  // a machine for a call spawned by the program running on root,
+  // sharing its program, memory, console, and collector, with its
+  // stack below stackLimit
+  VirtualMachine( VirtualMachine root, int stackLimit )
+  {
+    this.stackLimit = stackLimit;
+    io = root.io;  fileName = root.fileName;
+    collector = root.collector;
+    stackReserve = root.stackReserve;
+    max = root.max;  mem = root.mem;  heap = root.heap;
+    heapBase = root.heapBase;  offHeap = root.offHeap;
+    hp = root.hp;  gp = root.gp;
+    labels = root.labels;  insnAt = root.insnAt;  numInsns = root.numInsns;
+    dOp = root.dOp;  dA = root.dA;  dB = root.dB;  dC = root.dC;  dD = root.dD;
+    dAddr = root.dAddr;  frameExtent = root.frameExtent;
+    passArgs = root.passArgs;
+    workers = root.workers;
+    // (Workers adds what it covers to root once the call is done)
+    if( root.covered != null )
+      covered = new long[ root.covered.length ];
+    spawned = true;
+  }
+
+  // set up a fresh machine with an address space of limit cells,
+  // holding the given program ready to run
+  void load( String name, int limit ) throws IOException
+  {
+    fileName = name;
+    max = limit;
+    if( workers != null )
+    {
+      workers.shutdown();
+      workers = null;
+    }
+
+    mem = new int[ Math.min( pageSize, max ) ];
+    heap = new int[0];
+    heapBase = max;  hp = max;
+    if( offHeap != null )
+      offHeap.reset( max );
+    collector.reset();
+    profiler = null;
+    covered = null;
+    step = 0;
+    halted = false;
+
+    // load the program into the front part of
+    // memory, either from the binary form Jive produces
+    // or by parsing the text form
+    labels = new IntIntMap();
+    int k;
+    if( VPLBinary.isBinary( fileName ) )
+      k = VPLBinary.load( fileName, this );
+    else
+      k = loadText( fileName );
+
+    if( VPLLog.on( VPLLog.trace ) )
+    {
+      VPLLog.println( VPLLog.trace, "after replacing labels:" );
+      showMem( 0, k-1 );
+    }
+
+    // initialize registers:
+    bp = k;  sp = k+2;  ip = 0;  rv = -1;  hp = max;
+    numPassed = 0;
+    if( sp > mem.length )
+      growMem( sp );
+    
+    int codeEnd = bp-1;
+
+    gp = codeEnd + 1;
+    stackCap = limits != null ? limits.stackEnd( gp ) : Integer.MAX_VALUE;
+
+    // reject code the execution loop can't trust, then
+    // make room for the whole frame of main
+    VPLVerifier verifier = new VPLVerifier( this );
+    verifier.verify( codeEnd );
+    stackReserve = verifier.maxExtent;
+    if( bp + verifier.extentAt[0] > mem.length )
+      growMem( bp + verifier.extentAt[0] );
+
+    // translate the code segment once into the pre-decoded
+    // instruction stream used by the execution loop
+    decode( codeEnd, verifier );
+
+  }// load
+
+  // report an error that makes it impossible to go on
+  void fatal( String message )
+  {
+    throw new VPLException( message );
+  }
+
+  // make mem hold at least cells 0..needed-1, growing by doubling
+  // as long as that stays below the heap
+  void growMem( int needed )
+  {
+    if( needed > hp || needed < 0 )
+      fatal("out of memory: need " + needed +
+            " cells below the heap, which starts at " + hp );
+
+    if( needed > heapBase )
+      trimHeap();
+
+    int newLength = grownLength( mem.length, needed, heapBase );
+    int[] newMem = allocate( newLength );
+    System.arraycopy( mem, 0, newMem, 0, mem.length );
+    mem = newMem;
+  }
+
+  // make mem hold the stack up to needed, which it can only do
+  // while there are no spawned calls
+  void growStack( int needed )
+  {
+    if( needed > stackCap )
+      throw new Limits.Exceeded( this, "stack", limits.maxStack );
+    if( workers != null )
+      fatal("out of stack: need " + needed + " cells, but this stack ends at " +
+            stackLimit + " (try a bigger -stack)" );
+    growMem( needed );
+  }
+
+  // the first cell past the stack that a call can use without
+  // growing it (new can shrink mem, so this is looked at again
+  // after each one)
+  int stackEnd()
+  {
+    return workers != null ? stackLimit : Math.min( mem.length, stackCap );
+  }
+
+  // make heap hold at least cells newHp..max-1, growing by doubling
+  // as long as that stays above stackTop, the first cell of mem
+  // not in use
+  void growHeap( int newHp, int stackTop )
+  {
+    if( newHp < stackTop || newHp > max )
+      fatal("out of memory: heap needs to start at " + newHp +
+            " but the stack reaches " + stackTop );
+
+    if( newHp < mem.length )
+      mem = Arrays.copyOf( mem, stackTop );
+
+    if( offHeap != null )
+    {// a whole chunk at a time
+      heapBase = Math.max( OffHeap.low( newHp ), mem.length );
+      offHeap.cover( heapBase );
+      return;
+    }
+
+    int newLength = grownLength( heap.length, max - newHp, max - mem.length );
+    int[] newHeap = allocate( newLength );
+    System.arraycopy( heap, 0, newHeap, newLength - heap.length, heap.length );
+    heap = newHeap;
+    heapBase = max - newLength;
+  }
+
+  // give up the part of the heap segment below hp
+  private void trimHeap()
+  {
+    if( offHeap != null )
+    {
+      heapBase = hp;
+      offHeap.cover( hp );
+      return;
+    }
+    heap = Arrays.copyOfRange( heap, hp - heapBase, heap.length );
+    heapBase = hp;
+  }
+
+  // cell k of the heap segment, for k from heapBase up to max-1
+  int heapCell( int k )
+  {
+    return offHeap == null ? heap[ k - heapBase ] : offHeap.get( k );
+  }
+
+  void setHeapCell( int k, int value )
+  {
+    if( offHeap == null )
+      heap[ k - heapBase ] = value;
+    else
+      offHeap.put( k, value );
+  }
+
+  // cells from..to-1 of the heap segment get 0
+  void clearHeap( int from, int to )
+  {
+    if( offHeap == null )
+      Arrays.fill( heap, from - heapBase, to - heapBase, 0 );
+    else
+      offHeap.clear( from, to );
+  }
+
+  // cell k, wherever it is kept
+  private int cell( int k )
+  {
+    return k >= heapBase ? heapCell( k ) : mem[ k ];
+  }
+
+  private void setCell( int k, int value )
+  {
+    if( k >= heapBase )
+      setHeapCell( k, value );
+    else
+      mem[ k ] = value;
+  }
+
+  // the bulk ops work on the count cells from addr: a range that
+  // is all in mem or all in the heap array is done by a library
+  // call or a loop over that array, which the JIT can vectorize,
+  // and any other range (across the gap, or in an OffHeap) a cell
+  // at a time; like get and put, a range of cells that aren't
+  // there throws ArrayIndexOutOfBoundsException
+
+  // the array holding all of the count cells from addr, or null
+  private int[] segment( int addr, int count )
+  {
+    if( count < 0 || addr < 0 || (long) addr + count > max )
+      throw new ArrayIndexOutOfBoundsException( addr );
+    if( addr >= heapBase )
+      return offHeap == null ? heap : null;
+    else if( addr + count <= mem.length )
+      return mem;
+    else
+      return null;
+  }
+
+  // index of cell addr in cells, which segment gave for it
+  private int offset( int[] cells, int addr )
+  {
+    return cells == mem ? addr : addr - heapBase;
+  }
+
+  void fill( int addr, int count, int value )
+  {
+    int[] cells = segment( addr, count );
+    if( cells != null )
+    {
+      int from = offset( cells, addr );
+      Arrays.fill( cells, from, from + count, value );
+    }
+    else
+      for( int k=addr; k<addr+count; ++k )
+        setCell( k, value );
+  }
+
+  // (the ranges may overlap, as if copied through a scratch array)
+  void move( int to, int from, int count )
+  {
+    int[] a = segment( to, count ), b = segment( from, count );
+    if( a != null && b != null )
+      System.arraycopy( b, offset( b, from ), a, offset( a, to ), count );
+    else if( to <= from )
+      for( int k=0; k<count; ++k )
+        setCell( to+k, cell( from+k ) );
+    else
+      for( int k=count-1; k>=0; --k )
+        setCell( to+k, cell( from+k ) );
+  }
+
+  // -1, 0, or 1, comparing the ranges a cell at a time
+  int compare( int x, int y, int count )
+  {
+    int[] a = segment( x, count ), b = segment( y, count );
+    if( a != null && b != null )
+    {
+      int i = offset( a, x ), j = offset( b, y );
+      return Integer.signum( Arrays.compare( a, i, i + count, b, j, j + count ) );
+    }
+    for( int k=0; k<count; ++k )
+    {
+      int p = cell( x+k ), q = cell( y+k );
+      if( p != q )
+        return p < q ? -1 : 1;
+    }
+    return 0;
+  }
+
+  // (wrapping around, as add does)
+  int sum( int addr, int count )
+  {
+    int[] cells = segment( addr, count );
+    int total = 0;
+    if( cells != null )
+    {
+      int from = offset( cells, addr );
+      for( int k=from; k<from+count; ++k )
+        total += cells[k];
+    }
+    else
+      for( int k=addr; k<addr+count; ++k )
+        total += cell( k );
+    return total;
+  }
+
+  // (of no cells, the greatest int)
+  int min( int addr, int count )
+  {
+    int[] cells = segment( addr, count );
+    int least = Integer.MAX_VALUE;
+    if( cells != null )
+    {
+      int from = offset( cells, addr );
+      for( int k=from; k<from+count; ++k )
+        least = Math.min( least, cells[k] );
+    }
+    else
+      for( int k=addr; k<addr+count; ++k )
+        least = Math.min( least, cell( k ) );
+    return least;
+  }
+
+  // (of no cells, the least int)
+  int max( int addr, int count )
+  {
+    int[] cells = segment( addr, count );
+    int greatest = Integer.MIN_VALUE;
+    if( cells != null )
+    {
+      int from = offset( cells, addr );
+      for( int k=from; k<from+count; ++k )
+        greatest = Math.max( greatest, cells[k] );
+    }
+    else
+      for( int k=addr; k<addr+count; ++k )
+        greatest = Math.max( greatest, cell( k ) );
+    return greatest;
+  }
+
+  // copy of the cells from hp up to max
+  int[] heapCells()
+  {
+    if( offHeap == null )
+      return Arrays.copyOfRange( heap, hp - heapBase, heap.length );
+    else
+      return offHeap.copy( hp, max );
+  }
+
+  // make cells, which were cells newHp..max-1, the heap segment
+  void restoreHeap( int[] cells, int newHp )
+  {
+    hp = newHp;
+    if( offHeap == null )
+    {
+      heap = cells;  heapBase = newHp;
+      return;
+    }
+    heapBase = newHp;
+    offHeap.cover( newHp );
+    for( int k=0; k<cells.length; ++k )
+      offHeap.put( newHp + k, cells[k] );
+  }
+
+  // return double the length (at least needed), in whole
+  // pages, but no more than limit
+  private static int grownLength( int length, int needed, int limit )
+  {
+    long want = Math.max( 2L * length, needed );
+    want = (want + pageSize - 1) / pageSize * pageSize;
+    return (int) Math.min( want, limit );
+  }
+
+  private int[] allocate( int length )
+  {
+    try {
+      return new int[ length ];
+    }
+    catch( OutOfMemoryError e )
+    {
+      fatal("out of memory: Java heap can't hold " + length + " cells" );
+      return null;
+    }
+  }
+
+  // load the text form of a VPL program into the front of mem,
+  // replacing labels by the index where they occur, and
+  // return the number of cells of code loaded
+  private int loadText( String fileName ) throws IOException
+  {
+    Scanner input = new Scanner( new File( fileName ) );
+    String line;
+    StringTokenizer st;
+    int opcode;
+
+    // labels maps each label to the index where it was defined,
+    // holes holds the indices of cells holding a label to be replaced
+    int[] holes = new int[64];
+    int numHoles = 0;
+    int label;
+
+    // load the code
+
+    boolean tracing = VPLLog.on( VPLLog.trace );
+
+    int k=0;
+    int lineNumber = 0;
+    while ( input.hasNextLine() ) {
+      line = input.nextLine();
+      lineNumber++;
+      if( tracing )
+        VPLLog.println( VPLLog.trace, "parsing line [" + line + "]" );
+      if( line != null )
+      {// extract any tokens
+        st = new StringTokenizer( line );
+        if( st.countTokens() > 0 )
+        {// have a token, so must be an instruction (as opposed to empty line)
+
+          opcode = number( st.nextToken(), lineNumber );
+          int length = instrLength( opcode );
+          if( st.countTokens() < length - 1 )
+            fatal("opcode [" + opcode + "] on line " + lineNumber + " needs " +
+                  (length - 1) + (length == 2 ? " operand" : " operands") +
+                  " but has " + st.countTokens() );
+
+          // load the instruction into memory:
+
+          if( opcode == labelCode )
+          {// note index that comes where label would go
+            label = number( st.nextToken(), lineNumber );
+            if( labels.put( label, k ) >= 0 )
+            {
+              fatal("label [" + label + "] defined again on line " +
+                    lineNumber );
+            }
+          }
+          else if( opcode == noopCode ){
+          }
+          else
+          {// opcode actually gets stored
+            if( k + length > mem.length )
+              growMem( k + length );
+
+            mem[k] = opcode;  k++;
+ 
+            if( opcode == callCode || opcode == jumpCode ||
+                opcode == condJumpCode || opcode == spawnCode )
+            {// note the hole immediately after the opcode to be filled in later
+              label = number( st.nextToken(), lineNumber );
+              mem[k] = label;
+              if( numHoles == holes.length )
+                holes = Arrays.copyOf( holes, 2*numHoles );
+              holes[ numHoles ] = k;  numHoles++;
+              ++k;
+            }
+
+            // load correct number of arguments (following label, if any):
+            for( int j=0; j<numArgs(opcode); ++j )
+            {
+              mem[k] = number( st.nextToken(), lineNumber );
+              ++k;
+            }
+
+          }// not a label
+
+        }// have a token, so must be an instruction
+      }// have a line
+    }// loop to load code
+    
+    //System.out.println("after first scan:");
+    //showMem( 0, k-1 );
+
+    // fill in all the holes:
+    int index;
+    for( int m=0; m<numHoles; ++m )
+    {
+      label = mem[ holes[m] ];
+      index = labels.get( label );
+      if( index < 0 )
+      {
+        fatal("label [" + label + "] used at index " + (holes[m]-1) +
+              " is never defined" );
+      }
+      mem[ holes[m] ] = index;
+    }
+
+    input.close();
+    return k;
+
+  }// loadText
+
+  // token, on line lineNumber of a program, as a number
+  private int number( String token, int lineNumber )
+  {
+    try {
+      return Integer.parseInt( token );
+    }
+    catch( NumberFormatException e )
+    {
+      fatal("[" + token + "] on line " + lineNumber + " is not a number");
+      return 0;
+    }
+  }
+
+  // pre-decoded form of the code segment, built once by decode:
+  //   instruction n has opcode dOp[n] and operands dA[n], dB[n], dC[n]
+  //   (and dD[n] for cas, compare, and the superinstructions made
+  //   by fuseSequences),
+  //   and its opcode was loaded at code address dAddr[n];
+  //   insnAt[k] is the instruction whose opcode is at address k,
+  //   or -1 if address k is not the start of an instruction
+  //   (the address just past the code is instruction numInsns,
+  //   where spawned calls return to)
+  // operands that name a cell in the stack frame already include the 2
+  // cells for return ip and return bp, so "cell a" is just mem[bp+dA[n]],
+  // and label operands hold the index of the target instruction
+  int[] dOp, dA, dB, dC, dD, dAddr;
+  int[] insnAt;
+
+  // for the first instruction of each function, the most cells
+  // above bp it can reach (from the verifier), so a call checks for
+  // room once instead of every pass and alloc checking
+  int[] frameExtent;
+  int numInsns;
+
+  // fixed size of the frame header (return ip, return bp)
+  private static final int frameHeader = 2;
+
+  // return the total number of cells taken by an instruction with
+  // the given opcode, counting the opcode and the label, if any
+  static int instrLength( int opcode )
+  {
+    if( opcode == callCode || opcode == jumpCode ||
+        opcode == condJumpCode || opcode == spawnCode )
+      return 2 + numArgs( opcode );
+    else
+      return 1 + numArgs( opcode );
+  }
+
+  // scan the loaded code in mem[0..codeEnd] and build the
+  // pre-decoded instruction stream
+  private void decode( int codeEnd, VPLVerifier verifier )
+  {
+    insnAt = new int[ codeEnd+2 ];
+    Arrays.fill( insnAt, -1 );
+
+    // first pass: find instruction boundaries
+    int n = 0;
+    for( int k=0; k<=codeEnd; k += instrLength( mem[k] ) )
+    {
+      insnAt[k] = n;  n++;
+    }
+    numInsns = n;
+    insnAt[ codeEnd+1 ] = numInsns;
+
+    dOp = new int[ numInsns+1 ];  dA = new int[ numInsns+1 ];
+    dB = new int[ numInsns+1 ];   dC = new int[ numInsns+1 ];
+    dD = new int[ numInsns+1 ];
+    frameExtent = new int[ numInsns+1 ];
+    dAddr = new int[ numInsns+1 ];
+
+    // second pass: resolve operands
+    n = 0;
+    for( int k=0; k<=codeEnd; k += instrLength( mem[k] ) )
+    {
+      int op = mem[k];
+      dOp[n] = op;  dAddr[n] = k;
+      frameExtent[n] = verifier.extentAt[k];
+
+      if( op == jumpCode || op == callCode )
+      {
+        dA[n] = target( k, mem[k+1] );
+      }
+      else if( op == condJumpCode || op == spawnCode )
+      {
+        dA[n] = target( k, mem[k+1] );
+        dB[n] = frameHeader + mem[k+2];
+      }
+      else if( op == allocCode || op == allocGlobalCode )
+      {// op n
+        dA[n] = mem[k+1];
+      }
+      else if( op == litCode || op == fromGlobalCode )
+      {// op a n
+        dA[n] = frameHeader + mem[k+1];
+        dB[n] = mem[k+2];
+      }
+      else if( op == toGlobalCode )
+      {// op n a
+        dA[n] = mem[k+1];
+        dB[n] = frameHeader + mem[k+2];
+      }
+      else if( op == casCode || op == fetchAddCode )
+      {// op a n b c, op a n b
+        dA[n] = frameHeader + mem[k+1];
+        dB[n] = mem[k+2];
+        dC[n] = frameHeader + mem[k+3];
+        if( op == casCode )
+          dD[n] = frameHeader + mem[k+4];
+      }
+      else
+      {// all operands are cells in the stack frame
+        int count = numArgs( op );
+        if( count >= 1 ) dA[n] = frameHeader + mem[k+1];
+        if( count >= 2 ) dB[n] = frameHeader + mem[k+2];
+        if( count >= 3 ) dC[n] = frameHeader + mem[k+3];
+        if( count >= 4 ) dD[n] = frameHeader + mem[k+4];
+      }
+
+      if( verifier.fallsOffAt[k] )
+        dOp[n] = getRetvalAtEndCode;
+      else if( offHeap != null && op == getCode )
+        dOp[n] = getFarCode;
+      else if( offHeap != null && op == putCode )
+        dOp[n] = putFarCode;
+
+      n++;
+    }
+
+    // sentinel: falling off the end of the code is an error
+    // rather than running into the globals, except that it is
+    // where a spawned call returns to
+    dOp[numInsns] = endCode;  dAddr[numInsns] = codeEnd+1;
+
+    if( fusing )
+    {
+      fuseCalls();
+      fuseSequences();
+    }
+
+  }// decode
+
+  // cells passed by fused calls: fused call n passes cells
+  // passArgs[ dC[n] ] through passArgs[ dC[n]+dB[n]-1 ]
+  int[] passArgs;
+
+  // replace the first instruction of each
+  //     pass a1 ... pass ak  call L
+  // by one fused call that does all of it, and if the call is
+  // followed by
+  //     getRetval x  return x
+  // and L is the function the call is in, by a tail call that
+  // reuses the current frame instead of pushing a new one
+  //   the instructions after the first one are left as they were,
+  //   so a jump into the middle of a sequence still works
+  private void fuseCalls()
+  {
+    // a function starts at every call target
+    boolean[] isTarget = new boolean[ numInsns+1 ];
+    for( int n=0; n<numInsns; ++n )
+      if( dOp[n] == callCode )
+        isTarget[ dA[n] ] = true;
+
+    passArgs = new int[ numInsns ];
+    int numArgs = 0;
+    int function = -1;
+    for( int n=0; n<numInsns; ++n )
+    {
+      if( isTarget[n] )
+        function = n;
+
+      // count the passes from n up to a call
+      int k = 0;
+      while( dOp[n+k] == passCode )
+        k++;
+      if( dOp[n+k] != callCode )
+        continue;
+
+      boolean tail = dA[n+k] == function &&
+                     dOp[n+k+1] == getRetvalCode && dOp[n+k+2] == returnCode &&
+                     dA[n+k+1] == dA[n+k+2];
+      if( k == 0 && ! tail )
+        continue;
+
+      int target = dA[n+k];
+      dC[n] = numArgs;
+      for( int j=0; j<k; ++j )
+      {
+        passArgs[ numArgs ] = dA[n+j];  numArgs++;
+      }
+      dOp[n] = tail ? tailCallCode : fusedCallCode;
+      dA[n] = target;  dB[n] = k;
+    }
+  }
+
+  // replace the first instruction of each of these pairs by a
+  // superinstruction that does both (cells are a, b, c, ...):
+  //     op a b c  condJump L a   ->  opJump     (compare and branch)
+  //     lit c k   op a b c       ->  opLit      (op with a literal)
+  //     op a b c  copy d a       ->  opCopy     (op, then copy result)
+  //     copy a b  copy c d       ->  copyCopy
+  //     lit a j   lit c k        ->  litLit
+  // only for the ops Jive uses most; every superinstruction still
+  // writes every cell the pair writes, and the second instruction
+  // of the pair is left as it was for anything that jumps to it
+  private void fuseSequences()
+  {
+    for( int n=0; n+1<numInsns; ++n )
+    {
+      int op = dOp[n], next = dOp[n+1];
+      int a = dA[n], b = dB[n], c = dC[n];
+
+      if( next == condJumpCode && dB[n+1] == a && compareJump( op ) >= 0 )
+      {
+        dOp[n] = compareJump( op );
+        dA[n] = dA[n+1];  dB[n] = b;  dC[n] = c;  dD[n] = a;
+      }
+      else if( op == litCode && withLiteral( next ) >= 0 &&
+               dC[n+1] == a && dB[n+1] != a )
+      {
+        dOp[n] = withLiteral( next );
+        dA[n] = dA[n+1];  dB[n] = dB[n+1];  dC[n] = a;  dD[n] = b;
+      }
+      else if( next == copyCode && dB[n+1] == a && withCopy( op ) >= 0 )
+      {
+        dOp[n] = withCopy( op );
+        dD[n] = dA[n+1];
+      }
+      else if( op == copyCode && next == copyCode )
+      {
+        dOp[n] = copyCopyCode;
+        dC[n] = dA[n+1];  dD[n] = dB[n+1];
+      }
+      else if( op == litCode && next == litCode )
+      {
+        dOp[n] = litLitCode;
+        dC[n] = dA[n+1];  dD[n] = dB[n+1];
+      }
+    }
+  }
+
+  // superinstruction for op followed by a condJump on its result, or -1
+  private static int compareJump( int op )
+  {
+    if( op == lessCode ) return lessJumpCode;
+    else if( op == lessEqualCode ) return lessEqualJumpCode;
+    else if( op == equalCode ) return equalJumpCode;
+    else if( op == notEqualCode ) return notEqualJumpCode;
+    else return -1;
+  }
+
+  // superinstruction for op with a literal second operand, or -1
+  private static int withLiteral( int op )
+  {
+    if( op == addCode ) return addLitCode;
+    else if( op == subCode ) return subLitCode;
+    else if( op == lessCode ) return lessLitCode;
+    else return -1;
+  }
+
+  // superinstruction for op followed by a copy of its result, or -1
+  private static int withCopy( int op )
+  {
+    if( op == addCode ) return addCopyCode;
+    else if( op == subCode ) return subCopyCode;
+    else if( op == multCode ) return multCopyCode;
+    else return -1;
+  }
+
+  // convert the label hole at address k+1 (already replaced by a
+  // code address) to the index of the target instruction
+  private int target( int k, int address )
+  {
+    if( address < 0 || address >= insnAt.length || insnAt[address] < 0 )
+    {
+      fatal("instruction at " + k + " jumps to [" + address +
+            "] which is not an instruction" );
+    }
+    return insnAt[ address ];
+  }
+
+  // execute the pre-decoded program starting with the instruction at ip
+  void run()
+  {
+    run( Long.MAX_VALUE );
+  }
+
+  // execute from ip until halt, or until at least count more
+  // instructions have been executed, or, if stopAtDebug is set,
+  // just after a debug op, or at an input op the console isn't
+  // ready for, or at a breakpoint, returning whether the program
+  // halted
+  // (all the registers are in the fields either way, so calling
+  // this again just goes on)
+  boolean run( long count )
+  {
+    if( limits != null )
+      return limits.run( this, count, this::runSlice );
+    return runSlice( count );
+  }
+
+  // run( count ), with no limits to look at (Limits calls this
+  // a slice at a time)
+  private boolean runSlice( long count )
+  {
+    if( workers == null )
+    {
+      long start = step;
+      boolean done = execute( count );
+      if( ! spawning )
+        return done;
+
+      // the program has come to its first spawn, so from here on
+      // this machine runs a slice at a time, alongside its calls
+      workers = new Workers( this );
+      count -= step - start;
+    }
+    return workers.run( count );
+  }
+
+  // the execution loop behind run( count ), which also stops at
+  // the ops Workers has to take care of
+  boolean execute( long count )
+  {
+    // keep the hot registers and arrays in locals, writing them
+    // back to the fields whenever execution stops
+    // (mem, heap, and heapBase change only when a segment grows)
+    int[] mem = this.mem, heap = this.heap;
+    int heapBase = this.heapBase;
+    final OffHeap offHeap = this.offHeap;
+    final Workers workers = this.workers;
+    int stackEnd = stackEnd();
+    final int[] dOp = this.dOp, dA = this.dA, dB = this.dB, dC = this.dC;
+    int pc = insnAt[ ip ];
+    int bp = this.bp, sp = this.sp, rv = this.rv;
+    int numPassed = this.numPassed;
+    long steps = 0;
+    int n = pc;
+
+    // per-instruction counts, only kept when profiling
+    final Profiler profiler = this.profiler;
+    final long[] counts = profiler != null ? profiler.counts : null;
+    final boolean profiling = counts != null;
+    final long[] covered = this.covered;
+    final boolean watching = profiling || covered != null;
+
+    boolean done = false;
+    waitingForInput = false;
+    atBreakpoint = false;
+    spawning = false;  needsMemory = false;  returned = false;
+    joining = null;
+
+    // repeatedly execute a single operation
+    // *****************************************************************
+
+    try {
+
+    do {
+
+/*    // show details of current step
+      System.out.println("--------------------------");
+      System.out.println("Step of execution with IP = " + dAddr[pc] +
+         " opcode: " + dOp[pc] +
+         " bp = " + bp + " sp = " + sp + " hp = " + this.hp + " rv = " + rv );
+      System.out.println("--------------------------");
+      System.out.println( " memory from " + gp + " up: " );
+      showMem( gp, sp+3 );
+      System.out.println("hit <enter> to go on" );
+      keys.nextLine();
+*/
+
+      n = pc;
+      pc++;
+      steps++;
+      if( watching )
+      {
+        if( profiling )
+          counts[n]++;
+        if( covered != null )
+          covered[ n >>> 6 ] |= 1L << n;
+      }
+
+      switch( dOp[n] )
+      {
+        case callCode:
+          // new frame starts at sp, holding return ip and return bp,
+          // with the passed arguments already sitting just above them
+          if( sp + frameExtent[ dA[n] ] > stackEnd )
+          {
+            growStack( sp + frameExtent[ dA[n] ] );
+            mem = this.mem;  heap = this.heap;  heapBase = this.heapBase;
+            stackEnd = stackEnd();
+          }
+          mem[ sp ] = dAddr[ pc ];
+          mem[ sp+1 ] = bp;
+          bp = sp;
+          sp = bp + frameHeader + numPassed;
+          numPassed = 0;
+          pc = dA[n];
+          if( profiling )
+            profiler.enter( pc, step + steps );
+          break;
+
+        case fusedCallCode:
+        {// pass the cells, then call
+          int k = dB[n], args = dC[n];
+          if( sp + frameExtent[ dA[n] ] > stackEnd )
+          {
+            growStack( sp + frameExtent[ dA[n] ] );
+            mem = this.mem;  heap = this.heap;  heapBase = this.heapBase;
+            stackEnd = stackEnd();
+          }
+          int to = sp + frameHeader + numPassed;
+          for( int j=0; j<k; ++j )
+            mem[ to+j ] = mem[ bp + passArgs[ args+j ] ];
+          mem[ sp ] = dAddr[ n+k+1 ];
+          mem[ sp+1 ] = bp;
+          bp = sp;
+          sp = to + k;
+          numPassed = 0;
+          pc = dA[n];
+          steps += k;
+          if( profiling )
+          {
+            for( int j=1; j<=k; ++j )
+              counts[n+j]++;
+            profiler.enter( pc, step + steps );
+          }
+          break;
+        }
+
+        case tailCallCode:
+        {// pass the cells, then replace the current frame by the
+         // frame of the call, which returns where this one would have
+          int k = dB[n], args = dC[n];
+          if( bp + frameExtent[ dA[n] ] > stackEnd )
+          {
+            growStack( bp + frameExtent[ dA[n] ] );
+            mem = this.mem;  heap = this.heap;  heapBase = this.heapBase;
+            stackEnd = stackEnd();
+          }
+          int to = sp + frameHeader + numPassed;
+          for( int j=0; j<k; ++j )
+            mem[ to+j ] = mem[ bp + passArgs[ args+j ] ];
+          System.arraycopy( mem, sp + frameHeader, mem, bp + frameHeader,
+                            numPassed + k );
+          sp = bp + frameHeader + numPassed + k;
+          numPassed = 0;
+          pc = dA[n];
+          // count the getRetval and return this call would have
+          // done on the way back out, too
+          steps += k + 2;
+          if( profiling )
+          {
+            for( int j=1; j<=k+2; ++j )
+              counts[n+j]++;
+            profiler.exit( step + steps );
+            profiler.enter( pc, step + steps );
+          }
+          break;
+        }
+
+        // superinstructions: each one also does the instruction
+        // after it, so skip that one
+
+        case lessJumpCode:
+          pc++;  steps++;
+          if( (mem[ bp + dD[n] ] =
+                 mem[ bp + dB[n] ] < mem[ bp + dC[n] ] ? 1 : 0) != 0 )
+            pc = dA[n];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case lessEqualJumpCode:
+          pc++;  steps++;
+          if( (mem[ bp + dD[n] ] =
+                 mem[ bp + dB[n] ] <= mem[ bp + dC[n] ] ? 1 : 0) != 0 )
+            pc = dA[n];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case equalJumpCode:
+          pc++;  steps++;
+          if( (mem[ bp + dD[n] ] =
+                 mem[ bp + dB[n] ] == mem[ bp + dC[n] ] ? 1 : 0) != 0 )
+            pc = dA[n];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case notEqualJumpCode:
+          pc++;  steps++;
+          if( (mem[ bp + dD[n] ] =
+                 mem[ bp + dB[n] ] != mem[ bp + dC[n] ] ? 1 : 0) != 0 )
+            pc = dA[n];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case addLitCode:
+          pc++;  steps++;
+          mem[ bp + dC[n] ] = dD[n];
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] + dD[n];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case subLitCode:
+          pc++;  steps++;
+          mem[ bp + dC[n] ] = dD[n];
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] - dD[n];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case lessLitCode:
+          pc++;  steps++;
+          mem[ bp + dC[n] ] = dD[n];
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] < dD[n] ? 1 : 0;
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case addCopyCode:
+          pc++;  steps++;
+          mem[ bp + dD[n] ] = mem[ bp + dA[n] ] =
+                                  mem[ bp + dB[n] ] + mem[ bp + dC[n] ];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case subCopyCode:
+          pc++;  steps++;
+          mem[ bp + dD[n] ] = mem[ bp + dA[n] ] =
+                                  mem[ bp + dB[n] ] - mem[ bp + dC[n] ];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case multCopyCode:
+          pc++;  steps++;
+          mem[ bp + dD[n] ] = mem[ bp + dA[n] ] =
+                                  mem[ bp + dB[n] ] * mem[ bp + dC[n] ];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case copyCopyCode:
+          pc++;  steps++;
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ];
+          mem[ bp + dC[n] ] = mem[ bp + dD[n] ];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        case litLitCode:
+          pc++;  steps++;
+          mem[ bp + dA[n] ] = dB[n];
+          mem[ bp + dC[n] ] = dD[n];
+          if( profiling ) counts[n+1]++;
+          break;
+
+        // the verifier made sure the frame of the function, with room
+        // for the calls it makes, was in mem when it was called, so
+        // pass and alloc don't need to check
+
+        case passCode:
+          mem[ sp + frameHeader + numPassed ] = mem[ bp + dA[n] ];
+          numPassed++;
+          break;
+
+        case allocCode:
+          sp += dA[n];
+          break;
+
+        case returnCode:
+          rv = mem[ bp + dA[n] ];
+          pc = insnAt[ mem[ bp ] ];
+          sp = bp;
+          bp = mem[ bp+1 ];
+          if( profiling )
+            profiler.exit( step + steps );
+          break;
+
+        case getRetvalCode:
+          mem[ bp + dA[n] ] = rv;
+          break;
+
+        case breakCode:
+          // stop before the instruction, as if it hadn't been reached
+          pc = n;  steps--;
+          if( profiling )
+            counts[n]--;
+          atBreakpoint = true;
+          count = 0;
+          break;
+
+        case getRetvalAtEndCode:
+          mem[ bp + dA[n] ] = rv;
+          this.ip = dAddr[n];
+          fatal("ran off the end of the function holding ip = " + dAddr[n] );
+          break;
+
+        case jumpCode:
+          pc = dA[n];
+          break;
+
+        case condJumpCode:
+          if( mem[ bp + dB[n] ] != 0 )
+            pc = dA[n];
+          break;
+
+        case addCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] + mem[ bp + dC[n] ];
+          break;
+
+        case subCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] - mem[ bp + dC[n] ];
+          break;
+
+        case multCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] * mem[ bp + dC[n] ];
+          break;
+
+        case divCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] / mem[ bp + dC[n] ];
+          break;
+
+        case remCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] % mem[ bp + dC[n] ];
+          break;
+
+        case equalCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] == mem[ bp + dC[n] ] ? 1 : 0;
+          break;
+
+        case notEqualCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] != mem[ bp + dC[n] ] ? 1 : 0;
+          break;
+
+        case lessCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] < mem[ bp + dC[n] ] ? 1 : 0;
+          break;
+
+        case lessEqualCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] <= mem[ bp + dC[n] ] ? 1 : 0;
+          break;
+
+        case andCode:
+          mem[ bp + dA[n] ] =
+             mem[ bp + dB[n] ] != 0 && mem[ bp + dC[n] ] != 0 ? 1 : 0;
+          break;
+
+        case orCode:
+          mem[ bp + dA[n] ] =
+             mem[ bp + dB[n] ] != 0 || mem[ bp + dC[n] ] != 0 ? 1 : 0;
+          break;
+
+        case notCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ] == 0 ? 1 : 0;
+          break;
+
+        case oppCode:
+          mem[ bp + dA[n] ] = - mem[ bp + dB[n] ];
+          break;
+
+        case litCode:
+          mem[ bp + dA[n] ] = dB[n];
+          break;
+
+        case copyCode:
+          mem[ bp + dA[n] ] = mem[ bp + dB[n] ];
+          break;
+
+        case getCode:
+          {
+            int addr = mem[ bp + dB[n] ] + mem[ bp + dC[n] ];
+            mem[ bp + dA[n] ] =
+               addr >= heapBase ? heap[ addr - heapBase ] : mem[ addr ];
+          }
+          break;
+
+        case putCode:
+          {
+            int addr = mem[ bp + dA[n] ] + mem[ bp + dB[n] ];
+            if( addr >= heapBase )
+              heap[ addr - heapBase ] = mem[ bp + dC[n] ];
+            else
+              mem[ addr ] = mem[ bp + dC[n] ];
+          }
+          break;
+
+        case getFarCode:
+          {
+            int addr = mem[ bp + dB[n] ] + mem[ bp + dC[n] ];
+            mem[ bp + dA[n] ] =
+               addr >= heapBase ? offHeap.get( addr ) : mem[ addr ];
+          }
+          break;
+
+        case putFarCode:
+          {
+            int addr = mem[ bp + dA[n] ] + mem[ bp + dB[n] ];
+            if( addr >= heapBase )
+              offHeap.put( addr, mem[ bp + dC[n] ] );
+            else
+              mem[ addr ] = mem[ bp + dC[n] ];
+          }
+          break;
+
+        // bulk ops: one dispatch for a whole range of cells
+
+        case fillCode:
+          fill( mem[ bp + dA[n] ], mem[ bp + dB[n] ], mem[ bp + dC[n] ] );
+          break;
+
+        case moveCode:
+          move( mem[ bp + dA[n] ], mem[ bp + dB[n] ], mem[ bp + dC[n] ] );
+          break;
+
+        case compareCode:
+          mem[ bp + dA[n] ] =
+             compare( mem[ bp + dB[n] ], mem[ bp + dC[n] ], mem[ bp + dD[n] ] );
+          break;
+
+        case sumCode:
+          mem[ bp + dA[n] ] = sum( mem[ bp + dB[n] ], mem[ bp + dC[n] ] );
+          break;
+
+        case minCode:
+          mem[ bp + dA[n] ] = min( mem[ bp + dB[n] ], mem[ bp + dC[n] ] );
+          break;
+
+        case maxCode:
+          mem[ bp + dA[n] ] = max( mem[ bp + dB[n] ], mem[ bp + dC[n] ] );
+          break;
+
+        case haltCode:
+          done = true;
+          break;
+
+        case inputCode:
+          if( ! io.inputReady() )
+          {// stop, so the input op runs again once there is input
+            pc = n;  steps--;
+            if( profiling )
+              counts[n]--;
+            waitingForInput = true;
+            count = 0;
+            break;
+          }
+          mem[ bp + dA[n] ] = io.readInt();
+          break;
+
+        case outputCode:
+          io.writeInt( mem[ bp + dA[n] ] );
+          break;
+
+        case newlineCode:
+          io.newline();
+          break;
+
+        case symbolCode:
+          {
+            int sym = mem[ bp + dA[n] ];
+            if( 32 <= sym && sym <= 126 )
+              io.symbol( sym );
+          }
+          break;
+
+        case newCode:
+          if( workers != null && ! workers.exclusive() )
+          {// stop, so Workers can do it while no other machine runs
+            pc = n;  steps--;
+            if( profiling )
+              counts[n]--;
+            needsMemory = true;
+            count = 0;
+            break;
+          }
+          {// (with spawned calls, every stack slot is a root)
+            int addr = collector.allocate( mem[ bp + dB[n] ],
+                          workers == null ? sp + frameHeader + numPassed :
+                                            mem.length, rv );
+            if( workers != null )
+              workers.share();
+            mem = this.mem;  heap = this.heap;  heapBase = this.heapBase;
+            stackEnd = stackEnd();
+            mem[ bp + dA[n] ] = addr;
+          }
+          break;
+
+        case spawnCode:
+          if( workers == null )
+          {// stop, so run can start the workers
+            pc = n;  steps--;
+            if( profiling )
+              counts[n]--;
+            spawning = true;
+            count = 0;
+            break;
+          }
+          mem[ bp + dB[n] ] = workers.spawn( dA[n], Arrays.copyOfRange( mem,
+                     sp + frameHeader, sp + frameHeader + numPassed ) );
+          numPassed = 0;
+          break;
+
+        case joinCode:
+          {
+            int handle = mem[ bp + dB[n] ];
+            Workers.Call call = workers != null ? workers.call( handle ) : null;
+            if( call == null )
+              fatal("join of [" + handle + "], which is not a spawned call, " +
+                    "at ip = " + dAddr[n] );
+            if( ! call.isDone() )
+            {// stop, so Workers can wait for it
+              pc = n;  steps--;
+              if( profiling )
+                counts[n]--;
+              joining = call;
+              count = 0;
+              break;
+            }
+            mem[ bp + dA[n] ] = workers.join( handle );
+          }
+          break;
+
+        case casCode:
+          mem[ bp + dA[n] ] = atomicCell.compareAndSet( mem, gp + dB[n],
+                        mem[ bp + dC[n] ], mem[ bp + dD[n] ] ) ? 1 : 0;
+          break;
+
+        case fetchAddCode:
+          mem[ bp + dA[n] ] =
+             (int) atomicCell.getAndAdd( mem, gp + dB[n], mem[ bp + dC[n] ] );
+          break;
+
+        case endCode:
+          if( spawned )
+          {// the spawned call has returned
+            pc = n;  steps--;
+            returned = true;
+            count = 0;
+            break;
+          }
+          this.ip = dAddr[n];
+          fatal("unknown opcode [-1] at ip = " + dAddr[n] );
+          break;
+
+        case allocGlobalCode:
+          // globals sit between the code and the first stack frame
+          bp = gp + dA[n];
+          sp = bp + frameHeader;
+          if( bp + frameExtent[0] > stackEnd )
+          {
+            growStack( bp + frameExtent[0] );
+            mem = this.mem;  heap = this.heap;  heapBase = this.heapBase;
+            stackEnd = stackEnd();
+          }
+          break;
+
+        case toGlobalCode:
+          mem[ gp + dA[n] ] = mem[ bp + dB[n] ];
+          break;
+
+        case fromGlobalCode:
+          mem[ bp + dA[n] ] = mem[ gp + dB[n] ];
+          break;
+
+        case debugCode:
+          VPLLog.println( VPLLog.summary, "[debug] ip = " + dAddr[n] +
+             " bp = " + bp + " sp = " + sp + " hp = " + this.hp + " rv = " + rv );
+          if( stopAtDebug )
+            count = 0;
+          break;
+
+        default:
+          this.ip = dAddr[n];
+          fatal("unknown opcode [" + dOp[n] + "] at ip = " + dAddr[n] );
+      }
+
+    }while( !done && steps < count );
+
+    halted = done;
+
+    }
+    catch( Limits.Exceeded e )
+    {
+      if( e.ip < 0 )
+        e.ip = dAddr[n];
+      throw e;
+    }
+    catch( ArithmeticException e )
+    {
+      fatal("division by zero at ip = " + dAddr[n] );
+    }
+    catch( ArrayIndexOutOfBoundsException e )
+    {
+      fatal("memory access out of range at ip = " + dAddr[n] +
+            " (bp = " + bp + ", sp = " + sp + ", hp = " + this.hp + ")" );
+    }
+    finally
+    {
+      this.ip = dAddr[ pc ];  this.bp = bp;  this.sp = sp;
+      this.rv = rv;  this.numPassed = numPassed;
+      this.step += steps;
+    }
+
+    return halted;
+  }// execute
+
+  // cas and fetchAdd see the globals through this, so they are atomic
+  private static final VarHandle atomicCell =
+                            MethodHandles.arrayElementVarHandle( int[].class );
+
+  // use symbolic names for all opcodes:
+  // (the ops a program can use are package-visible, so the verifier,
+  // the compiled tier, and the debugger use these names too; the
+  // ops only decode makes stay private)
+
+  // op to produce comment
+  static final int noopCode = 0;
+
+  // ops involved with registers
+  static final int labelCode = 1;
+  static final int callCode = 2;
+  static final int passCode = 3;
+  static final int allocCode = 4;
+  static final int returnCode = 5;  // return a means "return and put
+           // copy of value stored in cell a in register rv
+  static final int getRetvalCode = 6;//op a means "copy rv into cell a"
+  static final int jumpCode = 7;
+  static final int condJumpCode = 8;
+
+  // arithmetic ops
+  static final int addCode = 9;
+  static final int subCode = 10;
+  static final int multCode = 11;
+  static final int divCode = 12;
+  static final int remCode = 13;
+  static final int equalCode = 14;
+  static final int notEqualCode = 15;
+  static final int lessCode = 16;
+  static final int lessEqualCode = 17;
+  static final int andCode = 18;
+  static final int orCode = 19;
+  static final int notCode = 20;
+  static final int oppCode = 21;
+  
+  // ops involving transfer of data
+  static final int litCode = 22;  // litCode a b means "cell a gets b"
+  static final int copyCode = 23;// copy a b means "cell a gets cell b"
+  static final int getCode = 24; // op a b means "cell a gets
+                                                // contents of cell whose 
+                                                // index is stored in b"
+  static final int putCode = 25;  // op a b means "put contents
+     // of cell b in cell whose offset is stored in cell a"
+
+  // system-level ops:
+  static final int haltCode = 26;
+  static final int inputCode = 27;
+  static final int outputCode = 28;
+  static final int newlineCode = 29;
+  static final int symbolCode = 30;
+  static final int newCode = 31;
+  
+  // global variable ops:
+  static final int allocGlobalCode = 32;
+  static final int toGlobalCode = 33;
+  static final int fromGlobalCode = 34;
+
+  // debug ops:
+  static final int debugCode = 35;
+
+  // ops for spawned calls (see Workers):
+  static final int spawnCode = 36;  // spawn L a means "call L on
+     // a machine of its own with the cells passed, and put its handle in a"
+  static final int joinCode = 37;  // join a b means "wait for the
+     // call with the handle in cell b, and put the value it returned in a"
+  static final int casCode = 38;  // cas a n b c means "if global n
+     // holds cell b, make it cell c; cell a gets 1 if it did, 0 if not"
+  static final int fetchAddCode = 39;  // fetchAdd a n b means
+     // "cell a gets global n, and global n gets that plus cell b", atomically
+
+  // bulk ops on a range of cells, which may be in the heap or not
+  // (see fill, move, compare, and reduce):
+  static final int fillCode = 40;  // fill a b c means "the cell[b]
+     // cells from the address in cell a get cell c"
+  static final int moveCode = 41;  // move a b c means "the cell[c]
+     // cells from the address in cell b are copied to the address in cell a"
+  static final int compareCode = 42;  // compare a b c d means
+     // "cell a gets -1, 0, or 1 as the cell[d] cells from the address in
+     // cell b come before, are the same as, or come after those from c"
+  static final int sumCode = 43;  // sum a b c means "cell a gets
+     // the total of the cell[c] cells from the address in cell b"
+  static final int minCode = 44;  // min and max a b c are like sum,
+  static final int maxCode = 45;  // with the least or greatest cell
+
+  // the highest opcode a program can use
+  static final int lastOp = maxCode;
+
+  // only in the pre-decoded stream, made by fuseCalls
+  private static final int fusedCallCode = 60;
+  private static final int tailCallCode = 61;
+
+  // superinstructions, made by fuseSequences
+  private static final int lessJumpCode = 62;
+  private static final int lessEqualJumpCode = 63;
+  private static final int equalJumpCode = 64;
+  private static final int notEqualJumpCode = 65;
+  private static final int addLitCode = 66;
+  private static final int subLitCode = 67;
+  private static final int lessLitCode = 68;
+  private static final int addCopyCode = 69;
+  private static final int subCopyCode = 70;
+  private static final int multCopyCode = 71;
+  private static final int copyCopyCode = 72;
+  private static final int litLitCode = 73;
+
+  // a getRetval at the end of a function, made by decode
+  private static final int getRetvalAtEndCode = 74;
+
+  // a breakpoint, patched over an instruction by the Debugger
+  static final int breakCode = 75;
+
+  // get and put for a heap segment kept in an OffHeap, made by decode
+  private static final int getFarCode = 76;
+  private static final int putFarCode = 77;
+
+  // the sentinel just past the code, where spawned calls return to
+  private static final int endCode = 78;
+
+  // mnemonics for the opcodes, for reports
+  private static final String[] opNames = {
+    "noop", "label", "call", "pass", "alloc", "return", "getRetval",
+    "jump", "condJump", "add", "sub", "mult", "div", "rem", "equal",
+    "notEqual", "less", "lessEqual", "and", "or", "not", "opp",
+    "lit", "copy", "get", "put", "halt", "input", "output", "newline",
+    "symbol", "new", "allocGlobal", "toGlobal", "fromGlobal", "debug",
+    "spawn", "join", "cas", "fetchAdd", "fill", "move", "compare", "sum",
+    "min", "max" };
+
+  static String opName( int opcode )
+  {
+    if( 0 <= opcode && opcode < opNames.length )
+      return opNames[ opcode ];
+    else
+      return "op" + opcode;
+  }
+
+  // return the number of arguments after the opcode,
+  // except ops that have a label return number of arguments
+  // after the label, which always comes immediately after 
+  // the opcode
+  private static int numArgs( int opcode )
+  {
+    // highlight specially behaving operations
+    if( opcode == labelCode ) return 1;  // not used
+    else if( opcode == jumpCode ) return 0;  // jump label
+    else if( opcode == condJumpCode ) return 1;  // condJump label expr
+    else if( opcode == callCode ) return 0;  // call label
+    else if( opcode == spawnCode ) return 1;  // spawn label a
+
+    // for all other ops, lump by count:
+
+    else if( opcode==noopCode ||
+             opcode==haltCode ||
+             opcode==newlineCode ||
+             opcode==debugCode
+           ) 
+      return 0;  // op
+
+    else if( opcode==passCode || opcode==allocCode || 
+             opcode==returnCode || opcode==getRetvalCode || 
+             opcode==inputCode || 
+             opcode==outputCode || opcode==symbolCode ||
+             opcode==allocGlobalCode
+           )  
+      return 1;  // op arg1
+
+    else if( opcode==notCode || opcode==oppCode || 
+             opcode==litCode || opcode==copyCode || opcode==newCode ||
+             opcode==toGlobalCode || opcode==fromGlobalCode ||
+             opcode==joinCode
+           ) 
+      return 2;  // op arg1 arg2
+
+    else if( opcode==addCode ||  opcode==subCode || opcode==multCode ||
+             opcode==divCode ||  opcode==remCode || opcode==equalCode ||
+             opcode==notEqualCode ||  opcode==lessCode || 
+             opcode==lessEqualCode || opcode==andCode ||
+             opcode==orCode || opcode==getCode || opcode==putCode ||
+             opcode==fetchAddCode || opcode==fillCode || opcode==moveCode ||
+             opcode==sumCode || opcode==minCode || opcode==maxCode
+           )
+      return 3;
+
+    else if( opcode==casCode || opcode==compareCode )
+      return 4;
+   
+    else
+    {
+      throw new VPLException("unknown opcode [" + opcode + "]" );
+    }
+
+  }// numArgs
+
+  private void showMem( int a, int b )
+  {
+    for( int k=a; k<=b; ++k )
+    {
+      VPLLog.out.println( k + ": " + mem[k] );
+    }
+  }// showMem
+
+}// VirtualMachine
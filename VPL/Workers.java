@@ -0,0 +1,477 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*  spawned calls: once a program executes its first spawn op,
+    its machine (root) runs alongside the calls it spawns, each
+    on a machine of its own that shares the code, the memory,
+    the console, and the collector of root but has its own
+    registers and its own stack, a slot of spawnStack cells
+    (-stack) carved out of mem above the stack of root
+
+    the calls are tasks of a fork-join pool of workerThreads
+    threads (-workers), so a call joining one that no thread has
+    started yet usually just runs it, and divide-and-conquer
+    programs keep every thread busy without a thread per call
+
+    every machine runs in slices of sliceSteps instructions, each
+    holding the read side of memoryLock.  Only the new op and a
+    new stack slot can move memory (a segment grows, or the heap
+    is collected), so a machine stops at a new op and does it
+    holding the write side, while no other machine is in the
+    middle of a slice.  A stack can't grow past its slot, since
+    the slots above it are in use.  A join whose call isn't done
+    waits for it outside the lock.
+
+    a halt anywhere halts the program (the other machines stop
+    at the end of their slice), and so does an error in a
+    spawned call, with that error
+*/
+
+public class Workers
+{
+  // instructions a machine runs between looks at the others
+  private static final int sliceSteps = 1 << 14;
+
+  private final VirtualMachine root;
+
+  // the console of root before it was shared
+  private final VPLIO io;
+
+  private final ForkJoinPool pool;
+
+  // held for reading while a machine runs a slice, for writing
+  // while memory moves
+  private final ReentrantReadWriteLock memoryLock = new ReentrantReadWriteLock();
+
+  // spawned calls by handle (0 is never one), and the handles of
+  // joined calls, to be given out again
+  private Call[] calls = new Call[64];
+  private int numHandles = 1;
+  private int[] freeHandles = new int[64];
+  private int numFreeHandles;
+
+  // stack slot k is the slotSize cells from slotBase + k*slotSize
+  private final int slotBase, slotSize;
+  private int numSlots;
+  private int[] freeSlots = new int[64];
+  private int numFreeSlots;
+
+  // the machines running calls right now
+  private final ArrayList<VirtualMachine> running = new ArrayList<VirtualMachine>();
+
+  // set once the program halts or a spawned call fails
+  private volatile boolean stopped;
+  private volatile String failure;
+
+  // calls spawned so far, and instructions they executed
+  final AtomicLong spawned = new AtomicLong(), instructions = new AtomicLong();
+
+  // the instructions the calls done so far covered, or null if
+  // root isn't keeping coverage (root's own bits are only ever
+  // set by its thread, so these are added to them at the end)
+  private final long[] covered;
+
+  Workers( VirtualMachine root )
+  {
+    this.root = root;
+    io = root.io;
+    root.io = new SharedIO( io );
+    slotSize = root.spawnStack;
+    covered = root.covered != null ? new long[ root.covered.length ] : null;
+    pool = new ForkJoinPool( root.workerThreads );
+
+    // root keeps the stack it has, and room for as much again
+    // as a spawned call gets
+    int base = (int) Math.min( (long) root.sp + root.stackReserve + slotSize,
+                               root.hp );
+    if( base > root.mem.length )
+      root.growMem( base );
+    slotBase = root.mem.length;
+    root.stackLimit = slotBase;
+  }
+
+  // one spawned call: the function it runs, the cells passed
+  // to it, and, once done, what it returned
+  final class Call extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int target;
+    private final int[] args;
+    private int result;
+    private String failed;
+
+    private Call( int target, int[] args )
+    {
+      this.target = target;
+      this.args = args;
+    }
+
+    protected void compute()
+    {
+      if( stopped )
+        return;
+      int slot = -1;
+      VirtualMachine vm = null;
+      try {
+        slot = takeSlot();
+        vm = start( this, slot );
+        result = runCall( vm );
+      }
+      catch( RuntimeException e )
+      {
+        failed = e instanceof VPLException ? e.getMessage() : e.toString();
+        fail( failed );
+      }
+      finally
+      {
+        end( vm, slot );
+      }
+    }
+  }
+
+  // run root for count more instructions, as VirtualMachine.run does
+  boolean run( long count )
+  {
+    VirtualMachine vm = root;
+    long end = vm.step + Math.min( count, Long.MAX_VALUE - vm.step );
+    try {
+      for(;;)
+      {
+        if( failure != null )
+          vm.fatal( failure );
+        if( stopped )
+        {// a spawned call halted
+          vm.halted = true;
+          return true;
+        }
+
+        long slice = Math.min( end - vm.step, sliceSteps );
+        if( slice <= 0 )
+          return false;
+        long before = vm.step;
+        if( slice( vm, slice ) )
+        {
+          shutdown();
+          return true;
+        }
+        if( ! settle( vm ) && vm.step - before < slice )
+          return false;  // at a debug op, an input op, or a breakpoint
+      }
+    }
+    catch( VPLException e )
+    {
+      shutdown();
+      throw e;
+    }
+  }
+
+  // run the machine of a spawned call until the call returns,
+  // returning its value
+  private int runCall( VirtualMachine vm )
+  {
+    for(;;)
+    {
+      if( stopped )
+        return 0;
+      if( slice( vm, sliceSteps ) )
+      {// halted
+        stopped = true;
+        return 0;
+      }
+      if( vm.returned )
+        return vm.rv;
+      if( settle( vm ) )
+        continue;
+      if( vm.atBreakpoint )
+        vm.fatal("a spawned call reached the breakpoint at ip = " + vm.ip );
+      if( vm.waitingForInput )
+        Thread.yield();
+    }
+  }
+
+  // run vm for up to count instructions, returning whether it halted
+  private boolean slice( VirtualMachine vm, long count )
+  {
+    memoryLock.readLock().lock();
+    try {
+      return vm.execute( count );
+    }
+    finally
+    {
+      memoryLock.readLock().unlock();
+    }
+  }
+
+  // do the new or the join that stopped the last slice of vm,
+  // returning whether that is what stopped it
+  private boolean settle( VirtualMachine vm )
+  {
+    if( vm.needsMemory )
+    {
+      memoryLock.writeLock().lock();
+      try {
+        vm.execute( 1 );
+      }
+      finally
+      {
+        memoryLock.writeLock().unlock();
+      }
+      return true;
+    }
+    else if( vm.joining != null )
+    {
+      vm.joining.quietlyJoin();
+      return true;
+    }
+    else
+      return false;
+  }
+
+  // whether the current thread may move memory
+  boolean exclusive()
+  {
+    return memoryLock.isWriteLockedByCurrentThread();
+  }
+
+  // after memory has moved (holding the write side of memoryLock),
+  // every machine sees the segments of root
+  synchronized void share()
+  {
+    for( VirtualMachine vm : running )
+    {
+      vm.mem = root.mem;  vm.heap = root.heap;
+      vm.heapBase = root.heapBase;  vm.hp = root.hp;
+    }
+  }
+
+  // rv of root and of every machine running a call, which the
+  // collector counts as roots
+  synchronized int[] registers()
+  {
+    int[] rvs = new int[ running.size() + 1 ];
+    rvs[0] = root.rv;
+    for( int k=0; k<running.size(); ++k )
+      rvs[k+1] = running.get(k).rv;
+    return rvs;
+  }
+
+  // start a call of the function starting at instruction target,
+  // passing args, and return its handle
+  int spawn( int target, int[] args )
+  {
+    Call call = new Call( target, args );
+    int handle;
+    synchronized( this )
+    {
+      if( numFreeHandles > 0 )
+      {
+        numFreeHandles--;
+        handle = freeHandles[ numFreeHandles ];
+      }
+      else
+      {
+        handle = numHandles;  numHandles++;
+        if( handle == calls.length )
+          calls = Arrays.copyOf( calls, 2*handle );
+      }
+      calls[ handle ] = call;
+    }
+    spawned.incrementAndGet();
+
+    if( ForkJoinTask.getPool() == pool )
+      call.fork();
+    else
+      pool.execute( call );
+    return handle;
+  }
+
+  // the call with handle, or null if there is none
+  synchronized Call call( int handle )
+  {
+    return 0 < handle && handle < numHandles ? calls[ handle ] : null;
+  }
+
+  // the value returned by the call with handle, which is done,
+  // and the handle can be given to another call
+  int join( int handle )
+  {
+    Call call;
+    synchronized( this )
+    {
+      call = calls[ handle ];
+      calls[ handle ] = null;
+      if( numFreeHandles == freeHandles.length )
+        freeHandles = Arrays.copyOf( freeHandles, 2*numFreeHandles );
+      freeHandles[ numFreeHandles ] = handle;  numFreeHandles++;
+    }
+    if( call.failed != null )
+      throw new VPLException( call.failed );
+    return call.result;
+  }
+
+  // a machine for call with its frame set up in stack slot, as
+  // if called from the end of the code, where it stops
+  private VirtualMachine start( Call call, int slot )
+  {
+    if( root.frameExtent[ call.target ] > slotSize )
+      root.fatal("a spawned call of the function at ip = " +
+                 root.dAddr[ call.target ] + " needs " +
+                 root.frameExtent[ call.target ] + " cells of stack, but " +
+                 "spawned calls get " + slotSize );
+
+    memoryLock.readLock().lock();
+    try {
+      int lo = slotBase + slot * slotSize;
+      VirtualMachine vm = new VirtualMachine( root, lo + slotSize );
+      vm.mem[ lo ] = root.gp;
+      vm.mem[ lo+1 ] = lo;
+      System.arraycopy( call.args, 0, vm.mem, lo+2, call.args.length );
+      vm.ip = root.dAddr[ call.target ];
+      vm.bp = lo;  vm.sp = lo + 2 + call.args.length;
+      synchronized( this )
+      {
+        running.add( vm );
+      }
+      return vm;
+    }
+    finally
+    {
+      memoryLock.readLock().unlock();
+    }
+  }
+
+  private void end( VirtualMachine vm, int slot )
+  {
+    synchronized( this )
+    {
+      if( vm != null )
+      {
+        running.remove( vm );
+        instructions.addAndGet( vm.step );
+        if( covered != null )
+          for( int k=0; k<covered.length; ++k )
+            covered[k] |= vm.covered[k];
+      }
+      if( slot < 0 )
+        return;
+      if( numFreeSlots == freeSlots.length )
+        freeSlots = Arrays.copyOf( freeSlots, 2*numFreeSlots );
+      freeSlots[ numFreeSlots ] = slot;  numFreeSlots++;
+    }
+  }
+
+  // a free stack slot, adding slots to mem if there are none
+  private int takeSlot()
+  {
+    synchronized( this )
+    {
+      if( numFreeSlots > 0 )
+      {
+        numFreeSlots--;
+        return freeSlots[ numFreeSlots ];
+      }
+    }
+
+    memoryLock.writeLock().lock();
+    try {
+      synchronized( this )
+      {
+        if( numFreeSlots > 0 )
+        {// another thread added some
+          numFreeSlots--;
+          return freeSlots[ numFreeSlots ];
+        }
+
+        // mem grows by doubling, so this adds slots for a while
+        root.growMem( (int) Math.min( slotBase + (numSlots + 1L) * slotSize,
+                                      Integer.MAX_VALUE ) );
+        int slot = numSlots;
+        numSlots = (root.mem.length - slotBase) / slotSize;
+        for( int k=numSlots-1; k>slot; --k )
+        {
+          if( numFreeSlots == freeSlots.length )
+            freeSlots = Arrays.copyOf( freeSlots, 2*numFreeSlots );
+          freeSlots[ numFreeSlots ] = k;  numFreeSlots++;
+        }
+        share();
+        return slot;
+      }
+    }
+    finally
+    {
+      memoryLock.writeLock().unlock();
+    }
+  }
+
+  private synchronized void fail( String why )
+  {
+    if( failure == null )
+      failure = why + " (in a spawned call)";
+    stopped = true;
+  }
+
+  // stop all the calls and let the threads go, giving root back
+  // its own console
+  void shutdown()
+  {
+    stopped = true;
+    pool.shutdown();
+    try {
+      // each call is at most a slice from seeing it has to stop
+      pool.awaitTermination( 1, TimeUnit.SECONDS );
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+    root.io = io;
+    if( covered != null )
+      synchronized( this )
+      {
+        for( int k=0; k<covered.length; ++k )
+          root.covered[k] |= covered[k];
+      }
+  }
+
+  // the console of root, used by one machine at a time
+  private static class SharedIO implements VPLIO
+  {
+    private final VPLIO io;
+
+    SharedIO( VPLIO io )
+    {
+      this.io = io;
+    }
+
+    public synchronized int readInt()
+    {  return io.readInt();  }
+
+    public synchronized boolean inputReady()
+    {  return io.inputReady();  }
+
+    public synchronized void writeInt( int value )
+    {  io.writeInt( value );  }
+
+    public synchronized void newline()
+    {  io.newline();  }
+
+    public synchronized void symbol( int c )
+    {  io.symbol( c );  }
+
+    public synchronized void flush()
+    {  io.flush();  }
+
+    public synchronized long inputsRead()
+    {  return io.inputsRead();  }
+
+    public synchronized long outputsWritten()
+    {  return io.outputsWritten();  }
+
+    public synchronized void skipInputs( long count )
+    {  io.skipInputs( count );  }
+  }
+
+}// Workers